@@ -0,0 +1,109 @@
+/**
+ *  @author Adrian Kuhn
+ *  @author David Erni   
+ *             
+ *      Copyright (c) 2010 University of Bern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ch.akuhn.edu.mit.tedlab;
+
+import java.util.Random;
+
+/**
+ * Compares the generic stride loops of the BLAS-1 kernels of Svdlib with
+ * their unit stride fast paths. The arguments are the vector lengths to
+ * measure; by default these span the term counts of small to large
+ * vocabularies. Prints the nanoseconds per call of both and the speedup.
+ */
+public class BlasBenchmark {
+
+    static final long TARGET_NANOS = 200000000L;
+    static double sink;
+
+    public static void main(String[] args) {
+        int[] lengths = { 1000, 10000, 100000, 1000000 };
+        if (args.length > 0) {
+            lengths = new int[args.length];
+            for (int i = 0; i < args.length; i++) lengths[i] = Integer.parseInt(args[i]);
+        }
+        System.out.printf("%-6s %9s %12s %12s %8s%n", "kernel", "n", "stride ns", "unit ns", "speedup");
+        for (int n : lengths) {
+            Random random = new Random(n);
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = random.nextDouble();
+                y[i] = random.nextDouble();
+            }
+            for (int kernel = 0; kernel < 4; kernel++) {
+                /* warm up both variants before timing them */
+                time(kernel, false, n, x, y);
+                time(kernel, true, n, x, y);
+                double stride = time(kernel, false, n, x, y);
+                double unit = time(kernel, true, n, x, y);
+                System.out.printf("%-6s %9d %12.1f %12.1f %7.2fx%n", 
+                        NAMES[kernel], n, stride, unit, stride / unit);
+            }
+        }
+    }
+
+    static final String[] NAMES = { "ddot", "daxpy", "dscal", "dcopy" };
+
+    /* Nanoseconds per call of a kernel, over about TARGET_NANOS. */
+    static double time(int kernel, boolean unit, int n, double[] x, double[] y) {
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int r = 0; r < 16; r++) call(kernel, unit, n, x, y);
+            calls += 16;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < TARGET_NANOS);
+        return (double) elapsed / calls;
+    }
+
+    static void call(int kernel, boolean unit, int n, double[] x, double[] y) {
+        switch (kernel) {
+        case 0:
+            sink += unit ? Svdlib.ddot_unit(n, x, y) : Svdlib.ddot_stride(n, x, 1, y, 1);
+            break;
+        case 1:
+            /* alternating signs keep the values bounded */
+            if (unit) Svdlib.daxpy_unit(n, 1e-3, x, y); 
+            else Svdlib.daxpy_stride(n, 1e-3, x, 1, y, 1);
+            if (unit) Svdlib.daxpy_unit(n, -1e-3, x, y); 
+            else Svdlib.daxpy_stride(n, -1e-3, x, 1, y, 1);
+            break;
+        case 2:
+            if (unit) {
+                Svdlib.dscal_unit(n, 2.0, y);
+                Svdlib.dscal_unit(n, 0.5, y);
+            } else {
+                Svdlib.dscal_stride(n, 2.0, y, 1);
+                Svdlib.dscal_stride(n, 0.5, y, 1);
+            }
+            break;
+        case 3:
+            if (unit) System.arraycopy(x, 0, y, 0, n);
+            else Svdlib.dcopy_stride(n, x, 0, 1, y, 0, 1);
+            break;
+        }
+    }
+}
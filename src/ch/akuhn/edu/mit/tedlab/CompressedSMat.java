@@ -0,0 +1,177 @@
+/**
+ *  @author Adrian Kuhn
+ *  @author David Erni   
+ *             
+ *      Copyright (c) 2010 University of Bern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ch.akuhn.edu.mit.tedlab;
+
+/**
+ * A sparse matrix whose row indices (column indices, if byRow) are 
+ * compressed. Within a column they ascend, so each is stored as its gap 
+ * to the previous one, in a varint of seven bits per byte; a co-occurrence
+ * matrix then needs one or two bytes per index instead of four. Each 
+ * column is a block that is decoded sequentially, as the kernels of 
+ * svd_opb and svd_opa walk it anyway; they dispatch to this class. The 
+ * values and pointr are kept as in SMat, rowind is null.
+ */
+public class CompressedSMat extends SMat {
+
+    public byte[] index; /* The gaps of the row indices, as varints. */
+    public int[] indexPointr; /* For each col (plus 1), the offset of its first gap. */
+
+    private CompressedSMat() {
+    }
+
+    /* Copies an SMat, compressing its indices; the SMat can be dropped
+     * afterwards. */
+    public static CompressedSMat copyOf(SMat A) {
+        if (!A.hasArrays()) 
+            throw new Error("CompressedSMat.copyOf: the matrix is not held in arrays");
+        int lines = A.byRow ? A.rows : A.cols;
+        CompressedSMat C = new CompressedSMat();
+        C.rows = A.rows;
+        C.cols = A.cols;
+        C.vals = A.vals;
+        C.byRow = A.byRow;
+        /* The values and column pointers are shared with A, only the
+         * indices are replaced. */
+        C.pointr = A.pointr;
+        C.indexPointr = new int[lines + 1];
+        C.value = A.value;
+        if (null == C.value) {
+            C.value = new double[A.vals];
+            for (int j = 0; j < A.vals; j++) C.value[j] = A.valueAt(j);
+        }
+        int bytes = 0;
+        for (int l = 0; l < lines; l++) {
+            C.indexPointr[l] = bytes;
+            for (int j = A.pointr[l], previous = -1; j < A.pointr[l+1]; j++) {
+                bytes += varintLength(A.rowind[j] - previous - 1);
+                previous = A.rowind[j];
+            }
+        }
+        C.indexPointr[lines] = bytes;
+        C.index = new byte[bytes];
+        for (int l = 0, p = 0; l < lines; l++) {
+            for (int j = A.pointr[l], previous = -1; j < A.pointr[l+1]; j++) {
+                int gap = A.rowind[j] - previous - 1;
+                if (gap < 0) 
+                    throw new Error("CompressedSMat.copyOf: the indices of line " + l + " do not ascend");
+                while (gap >= 0x80) {
+                    C.index[p++] = (byte) (gap | 0x80);
+                    gap >>>= 7;
+                }
+                C.index[p++] = (byte) gap;
+                previous = A.rowind[j];
+            }
+        }
+        return C;
+    }
+
+    static int varintLength(int gap) {
+        int length = 1;
+        while ((gap >>>= 7) != 0) length++;
+        return length;
+    }
+
+    /* The bytes of the compressed indices, their offsets and the column
+     * pointers, against 4 * (vals + pointr.length) uncompressed. */
+    public long indexBytes() {
+        return index.length + 4L * indexPointr.length + 4L * pointr.length;
+    }
+
+    @Override
+    boolean hasArrays() {
+        return false;
+    }
+
+    @Override
+    public SMat transposeView() {
+        CompressedSMat T = new CompressedSMat();
+        T.rows = cols;
+        T.cols = rows;
+        T.vals = vals;
+        T.byRow = !byRow;
+        T.pointr = pointr;
+        T.index = index;
+        T.indexPointr = indexPointr;
+        T.value = value;
+        return T;
+    }
+
+    /* The dot product of a line with a dense vector of its length. */
+    public double dot(int line, double[] v) {
+        byte[] index = this.index;
+        double[] value = this.value;
+        int p = indexPointr[line], i = -1, end = pointr[line+1];
+        double t = 0.0;
+        for (int j = pointr[line]; j < end; j++) {
+            int b = index[p++];
+            int gap = b & 0x7f;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = index[p++];
+                gap |= (b & 0x7f) << shift;
+            }
+            i += gap + 1;
+            t += value[j] * v[i];
+        }
+        return t;
+    }
+
+    /* v += a * line. */
+    void axpy(int line, double a, double[] v) {
+        byte[] index = this.index;
+        double[] value = this.value;
+        int p = indexPointr[line], i = -1, end = pointr[line+1];
+        for (int j = pointr[line]; j < end; j++) {
+            int b = index[p++];
+            int gap = b & 0x7f;
+            for (int shift = 7; b < 0; shift += 7) {
+                b = index[p++];
+                gap |= (b & 0x7f) << shift;
+            }
+            i += gap + 1;
+            v[i] += value[j] * a;
+        }
+    }
+
+    /* svd_opb: y = A'A x. */
+    void opb(double[] x, double[] y, double[] temp) {
+        opa(x, temp);
+        if (byRow) {
+            for (int i = 0; i < cols; i++) y[i] = 0.0;
+            for (int i = 0; i < rows; i++) axpy(i, temp[i], y);
+            return;
+        }
+        for (int i = 0; i < cols; i++) y[i] = dot(i, temp);
+    }
+
+    /* svd_opa: y = A x. */
+    void opa(double[] x, double[] y) {
+        if (byRow) {
+            for (int i = 0; i < rows; i++) y[i] = dot(i, x);
+            return;
+        }
+        for (int i = 0; i < rows; i++) y[i] = 0.0;
+        for (int i = 0; i < cols; i++) axpy(i, x[i], y);
+    }
+}
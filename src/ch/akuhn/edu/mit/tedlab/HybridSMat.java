@@ -0,0 +1,241 @@
+/**
+ *  @author Adrian Kuhn
+ *  @author David Erni   
+ *             
+ *      Copyright (c) 2010 University of Bern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ch.akuhn.edu.mit.tedlab;
+
+/**
+ * A sparse matrix whose nearly dense columns (rows, if byRow) are kept in
+ * a dense block, without row indices, and whose other columns are kept 
+ * compressed as in SMat. The head terms of a co-occurrence matrix co-occur
+ * with most terms, so their indices would cost as much memory as their 
+ * values, and a dense line is multiplied by a plain loop that the JIT can
+ * vectorize. svd_opb and svd_opa dispatch to the kernels of this class; 
+ * pointr, rowind and value hold the sparse lines only, the dense lines 
+ * having empty ranges there.
+ */
+public class HybridSMat extends SMat {
+
+    public int[] headLines; /* The indices of the dense lines, ascending. */
+    public int[] headSlot; /* For each line, its position in head, or -1. */
+    public double[][] head; /* The dense lines, one array each, by slot. */
+    int lines; /* The number of columns, or rows if byRow. */
+    int length; /* The length of a line. */
+    double[] lineNorm; /* The Euclidean norm of each line, once needed. */
+
+    /* An empty matrix in which the lines with at least density * length
+     * non-zeros are dense; the lines are filled by setLine. */
+    public HybridSMat(int rows, int cols, boolean byRow, int[] lineNonZeros, double density) {
+        this.rows = rows;
+        this.cols = cols;
+        this.byRow = byRow;
+        this.lines = byRow ? rows : cols;
+        this.length = byRow ? cols : rows;
+        this.headSlot = new int[lines];
+        this.pointr = new int[lines + 1];
+        int nHead = 0, nTail = 0;
+        for (int l = 0; l < lines; l++) {
+            vals += lineNonZeros[l];
+            pointr[l] = nTail;
+            if (lineNonZeros[l] >= density * length && lineNonZeros[l] > 0) {
+                headSlot[l] = nHead++;
+            } else {
+                headSlot[l] = -1;
+                nTail += lineNonZeros[l];
+            }
+        }
+        pointr[lines] = nTail;
+        this.headLines = new int[nHead];
+        for (int l = 0; l < lines; l++) 
+            if (headSlot[l] >= 0) headLines[headSlot[l]] = l;
+        this.head = new double[nHead][length];
+        this.rowind = new int[nTail];
+        this.value = new double[nTail];
+    }
+
+    private HybridSMat() {
+    }
+
+    /* Copies an SMat, keeping its lines with at least density * length 
+     * non-zeros dense. */
+    public static HybridSMat copyOf(SMat A, double density) {
+        if (!A.hasArrays()) 
+            throw new Error("HybridSMat.copyOf: the matrix is not held in arrays");
+        int lines = A.byRow ? A.rows : A.cols;
+        int[] lineNonZeros = new int[lines];
+        for (int l = 0; l < lines; l++) lineNonZeros[l] = A.pointr[l+1] - A.pointr[l];
+        HybridSMat H = new HybridSMat(A.rows, A.cols, A.byRow, lineNonZeros, density);
+        for (int l = 0; l < lines; l++) {
+            int slot = H.headSlot[l];
+            if (slot >= 0) {
+                double[] dense = H.head[slot];
+                for (int j = A.pointr[l]; j < A.pointr[l+1]; j++) 
+                    dense[A.rowind[j]] = A.valueAt(j);
+            } else {
+                int n = H.pointr[l];
+                for (int j = A.pointr[l]; j < A.pointr[l+1]; j++, n++) {
+                    H.rowind[n] = A.rowind[j];
+                    H.value[n] = A.valueAt(j);
+                }
+            }
+        }
+        return H;
+    }
+
+    /* Sets a line from its dense values; a sparse line must have at most 
+     * as many non-zeros as given to the constructor, the rest being kept
+     * as explicit zeros. */
+    public void setLine(int line, double[] dense) {
+        int slot = headSlot[line];
+        if (slot >= 0) {
+            System.arraycopy(dense, 0, head[slot], 0, length);
+        } else {
+            int n = pointr[line];
+            for (int i = 0; i < length; i++) {
+                if (0.0 == dense[i]) continue;
+                if (n == pointr[line+1]) 
+                    throw new Error("HybridSMat.setLine: line " + line + " has more non-zeros than declared");
+                rowind[n] = i;
+                value[n++] = dense[i];
+            }
+            for (; n < pointr[line+1]; n++) {
+                rowind[n] = 0;
+                value[n] = 0.0;
+            }
+        }
+        lineNorm = null;
+    }
+
+    /* The number of dense lines. */
+    public int headSize() {
+        return headLines.length;
+    }
+
+    @Override
+    boolean hasArrays() {
+        return false;
+    }
+
+    @Override
+    public SMat transposeView() {
+        HybridSMat T = new HybridSMat();
+        T.rows = cols;
+        T.cols = rows;
+        T.vals = vals;
+        T.byRow = !byRow;
+        T.lines = lines;
+        T.length = length;
+        T.headLines = headLines;
+        T.headSlot = headSlot;
+        T.head = head;
+        T.pointr = pointr;
+        T.rowind = rowind;
+        T.value = value;
+        T.lineNorm = lineNorm;
+        return T;
+    }
+
+    @Override
+    public double sumOfSquares() {
+        double sum = 0.0;
+        for (double[] dense : head) 
+            for (int i = 0; i < length; i++) sum += dense[i] * dense[i];
+        for (int j = 0; j < pointr[lines]; j++) sum += value[j] * value[j];
+        return sum;
+    }
+
+    /* The dot product of a line with a dense vector of its length. */
+    public double dot(int line, double[] v) {
+        double t = 0.0;
+        int slot = headSlot[line];
+        if (slot >= 0) {
+            double[] dense = head[slot];
+            for (int i = 0; i < length; i++) t += dense[i] * v[i];
+        } else {
+            int end = pointr[line+1];
+            for (int j = pointr[line]; j < end; j++) t += value[j] * v[rowind[j]];
+        }
+        return t;
+    }
+
+    /* v += a * line. */
+    void axpy(int line, double a, double[] v) {
+        int slot = headSlot[line];
+        if (slot >= 0) {
+            double[] dense = head[slot];
+            for (int i = 0; i < length; i++) v[i] += dense[i] * a;
+        } else {
+            int end = pointr[line+1];
+            for (int j = pointr[line]; j < end; j++) v[rowind[j]] += value[j] * a;
+        }
+    }
+
+    /* The cosine of a line and a dense vector of its length; the norms of 
+     * the lines are calculated on the first call. */
+    public double cos(int line, double[] v) {
+        if (null == lineNorm) {
+            double[] norm = new double[lines];
+            for (int l = 0; l < lines; l++) {
+                double sum = 0.0;
+                int slot = headSlot[l];
+                if (slot >= 0) {
+                    double[] dense = head[slot];
+                    for (int i = 0; i < length; i++) sum += dense[i] * dense[i];
+                } else {
+                    for (int j = pointr[l]; j < pointr[l+1]; j++) sum += value[j] * value[j];
+                }
+                norm[l] = Math.sqrt(sum);
+            }
+            lineNorm = norm;
+        }
+        double sum = 0.0;
+        for (int i = 0; i < length; i++) sum += v[i] * v[i];
+        return dot(line, v) / (lineNorm[line] * Math.sqrt(sum));
+    }
+
+    /* out = A x. */
+    void times(double[] x, double[] out) {
+        if (byRow) {
+            for (int i = 0; i < rows; i++) out[i] = dot(i, x);
+            return;
+        }
+        for (int i = 0; i < rows; i++) out[i] = 0.0;
+        for (int i = 0; i < cols; i++) axpy(i, x[i], out);
+    }
+
+    /* svd_opb: y = A'A x. */
+    void opb(double[] x, double[] y, double[] temp) {
+        times(x, temp);
+        if (byRow) {
+            for (int i = 0; i < cols; i++) y[i] = 0.0;
+            for (int i = 0; i < rows; i++) axpy(i, temp[i], y);
+            return;
+        }
+        for (int i = 0; i < cols; i++) y[i] = dot(i, temp);
+    }
+
+    /* svd_opa: y = A x. */
+    void opa(double[] x, double[] y) {
+        times(x, y);
+    }
+}
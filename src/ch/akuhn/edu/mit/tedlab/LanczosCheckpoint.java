@@ -0,0 +1,229 @@
+/**
+ *  @author Adrian Kuhn
+ *  @author David Erni   
+ *             
+ *      Copyright (c) 2010 University of Bern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ch.akuhn.edu.mit.tedlab;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only checkpoint file of a LAS2 Lanczos run. A header identifies
+ * the problem, and each checkpoint appends one record: the Lanczos vectors
+ * stored since the previous record, then the tridiagonal matrix, the
+ * orthogonality bounds, the work vectors and the loop state at the top of
+ * a Lanczos step. The vectors are written only once, so a record costs
+ * about the steps since the last one. A record torn by a crash is dropped
+ * on resume.
+ */
+class LanczosCheckpoint {
+    static final int HEADER = 0x4c415332;
+    static final int RECORD = 0x52454344;
+    static final int END = 0x454e4421;
+    static final int HEADER_BYTES = 5 * 4;
+
+    File file;
+    int n, vals, slots, iterations;
+    FileOutputStream fileOut;
+    DataOutputStream out;
+    boolean[] saved; /* LanStore slots already in the file */
+    byte[] buffer = new byte[0];
+
+    /* Loop state at the top of Lanczos step 'step'. */
+    int step, last, intro, ll;
+    double rnm, tol;
+
+    LanczosCheckpoint(File file, int n, int vals, int slots, int iterations) {
+        this.file = file;
+        this.n = n;
+        this.vals = vals;
+        this.slots = slots;
+        this.iterations = iterations;
+        this.saved = new boolean[slots];
+    }
+
+    /* Starts a new checkpoint file. */
+    void create() {
+        try {
+            fileOut = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            out.writeInt(HEADER);
+            out.writeInt(n);
+            out.writeInt(vals);
+            out.writeInt(slots);
+            out.writeInt(iterations);
+            sync();
+        } catch (IOException e) {
+            throw new Error("svdLAS2: cannot create checkpoint " + file, e);
+        }
+    }
+
+    /* Appends a record of the current state and forces it to disk. */
+    void append(double[][] LanStore, double[][] wptr, double[] alf, double[] eta,
+            double[] oldeta, double[] bet) {
+        try {
+            int count = 0;
+            for (int i = 0; i < slots; i++) if (null != LanStore[i] && !saved[i]) count++;
+            out.writeInt(RECORD);
+            out.writeInt(step);
+            out.writeInt(last);
+            out.writeInt(intro);
+            out.writeInt(ll);
+            out.writeDouble(rnm);
+            out.writeDouble(tol);
+            out.writeInt(count);
+            for (int i = 0; i < slots; i++) {
+                if (null == LanStore[i] || saved[i]) continue;
+                out.writeInt(i);
+                writeArray(LanStore[i]);
+                saved[i] = true;
+            }
+            writeArray(alf);
+            writeArray(eta);
+            writeArray(oldeta);
+            writeArray(bet);
+            for (int i = 0; i < 6; i++) writeArray(wptr[i]);
+            out.writeInt(END);
+            sync();
+        } catch (IOException e) {
+            throw new Error("svdLAS2: cannot write checkpoint " + file, e);
+        }
+    }
+
+    /* Restores the state of the last complete record, cuts off a torn
+     * record after it and reopens the file for appending. Returns the
+     * step of the record, or 0 if there is none. */
+    int restore(double[][] LanStore, double[][] wptr, double[] alf, double[] eta,
+            double[] oldeta, double[] bet) {
+        if (!file.exists()) return 0;
+        long good = HEADER_BYTES;
+        int found = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 1 << 16));
+            try {
+                if (in.readInt() != HEADER || in.readInt() != n || in.readInt() != vals
+                        || in.readInt() != slots || in.readInt() != iterations) {
+                    throw new Error("svdLAS2: checkpoint " + file + " is of another problem");
+                }
+                Map<Integer, double[]> vectors = new HashMap<Integer, double[]>();
+                double[][] state = new double[][] { new double[alf.length], 
+                        new double[eta.length], new double[oldeta.length], 
+                        new double[bet.length], new double[n], new double[n], 
+                        new double[n], new double[n], new double[n], new double[n] };
+                while (in.readInt() == RECORD) {
+                    int rstep = in.readInt();
+                    int rlast = in.readInt();
+                    int rintro = in.readInt();
+                    int rll = in.readInt();
+                    double rrnm = in.readDouble();
+                    double rtol = in.readDouble();
+                    int count = in.readInt();
+                    vectors.clear();
+                    for (int k = 0; k < count; k++) {
+                        int i = in.readInt();
+                        double[] v = new double[n];
+                        readArray(in, v);
+                        vectors.put(i, v);
+                    }
+                    for (int k = 0; k < state.length; k++) readArray(in, state[k]);
+                    if (in.readInt() != END) break;
+
+                    /* the record is complete */
+                    for (Map.Entry<Integer, double[]> e : vectors.entrySet()) {
+                        LanStore[e.getKey()] = e.getValue();
+                        saved[e.getKey()] = true;
+                    }
+                    System.arraycopy(state[0], 0, alf, 0, alf.length);
+                    System.arraycopy(state[1], 0, eta, 0, eta.length);
+                    System.arraycopy(state[2], 0, oldeta, 0, oldeta.length);
+                    System.arraycopy(state[3], 0, bet, 0, bet.length);
+                    for (int k = 0; k < 6; k++) System.arraycopy(state[4 + k], 0, wptr[k], 0, n);
+                    step = rstep;
+                    last = rlast;
+                    intro = rintro;
+                    ll = rll;
+                    rnm = rrnm;
+                    tol = rtol;
+                    found = rstep;
+                    good += 4 * 7 + 8 * 2 + (long) count * (4 + 8 * n)
+                            + 8L * (alf.length + eta.length + oldeta.length + bet.length + 6 * n);
+                }
+            } catch (EOFException e) {
+                /* torn record */
+            } finally {
+                in.close();
+            }
+            if (0 == found) return 0;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(good);
+            } finally {
+                raf.close();
+            }
+            fileOut = new FileOutputStream(file, true);
+            out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            return found;
+        } catch (IOException e) {
+            throw new Error("svdLAS2: cannot read checkpoint " + file, e);
+        }
+    }
+
+    void close() {
+        if (null == out) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new Error("svdLAS2: cannot close checkpoint " + file, e);
+        }
+        out = null;
+    }
+
+    void sync() throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+    }
+
+    void writeArray(double[] a) throws IOException {
+        if (buffer.length < 8 * a.length) buffer = new byte[8 * a.length];
+        ByteBuffer.wrap(buffer).asDoubleBuffer().put(a);
+        out.write(buffer, 0, 8 * a.length);
+    }
+
+    void readArray(DataInputStream in, double[] a) throws IOException {
+        if (buffer.length < 8 * a.length) buffer = new byte[8 * a.length];
+        in.readFully(buffer, 0, 8 * a.length);
+        ByteBuffer.wrap(buffer).asDoubleBuffer().get(a);
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ *  @author Adrian Kuhn
+ *  @author David Erni   
+ *             
+ *      Copyright (c) 2010 University of Bern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ch.akuhn.edu.mit.tedlab;
+
+/**
+ * A sparse matrix for more than 2^31 non-zeros. The column pointers are
+ * longs, and the row indices and values are split into segments of 
+ * 2^segmentBits entries, each an ordinary array. svd_opb and svd_opa
+ * dispatch to the kernels of this class, so svdLAS2 decomposes it like an
+ * SMat; a wide one is transposed by a view. The int fields of SMat are 
+ * not used, except rows and cols, and vals is capped at Integer.MAX_VALUE.
+ */
+public class LargeSMat extends SMat {
+
+    public static final int SEGMENT_BITS = 27;
+
+    public long nonZeros; /* Total non-zero entries. */
+    public long[] pointr64; /* For each col (plus 1), index of first non-zero entry. */
+    public int[][] rowindSegments; /* The row indices, in segments. */
+    public double[][] valueSegments; /* The values, in segments. */
+    public float[][] floatSegments; /* The values in single precision, if valueSegments is null. */
+    int segmentBits;
+    int segmentMask;
+
+    public LargeSMat(int rows, int cols, long nonZeros) {
+        this(rows, cols, nonZeros, SEGMENT_BITS);
+    }
+
+    public LargeSMat(int rows, int cols, long nonZeros, int segmentBits) {
+        this.rows = rows;
+        this.cols = cols;
+        this.vals = (int) Math.min(nonZeros, Integer.MAX_VALUE);
+        this.nonZeros = nonZeros;
+        this.segmentBits = segmentBits;
+        this.segmentMask = (1 << segmentBits) - 1;
+        this.pointr64 = new long[cols + 1];
+        int segments = (int) ((nonZeros + segmentMask) >>> segmentBits);
+        this.rowindSegments = new int[segments][];
+        this.valueSegments = new double[segments][];
+        for (int s = 0; s < segments; s++) {
+            int length = (int) Math.min(1L << segmentBits, nonZeros - ((long) s << segmentBits));
+            rowindSegments[s] = new int[length];
+            valueSegments[s] = new double[length];
+        }
+    }
+
+    private LargeSMat() {
+    }
+
+    /* Copies an SMat, mostly to check the kernels against it. */
+    public static LargeSMat copyOf(SMat A, int segmentBits) {
+        LargeSMat L = new LargeSMat(A.rows, A.cols, A.vals, segmentBits);
+        for (int c = 0; c <= A.cols; c++) L.pointr64[c] = A.pointr[c];
+        for (int i = 0; i < A.vals; i++) L.set(i, A.rowind[i], A.valueAt(i));
+        L.byRow = A.byRow;
+        return L;
+    }
+
+    public void set(long i, int row, double value) {
+        rowindSegments[(int) (i >>> segmentBits)][(int) i & segmentMask] = row;
+        valueSegments[(int) (i >>> segmentBits)][(int) i & segmentMask] = value;
+    }
+
+    public int row(long i) {
+        return rowindSegments[(int) (i >>> segmentBits)][(int) i & segmentMask];
+    }
+
+    public double value(long i) {
+        if (null == valueSegments) 
+            return floatSegments[(int) (i >>> segmentBits)][(int) i & segmentMask];
+        return valueSegments[(int) (i >>> segmentBits)][(int) i & segmentMask];
+    }
+
+    @Override
+    boolean hasArrays() {
+        return false;
+    }
+
+    @Override
+    public SMat transposeView() {
+        LargeSMat T = new LargeSMat();
+        T.rows = cols;
+        T.cols = rows;
+        T.vals = vals;
+        T.nonZeros = nonZeros;
+        T.segmentBits = segmentBits;
+        T.segmentMask = segmentMask;
+        T.pointr64 = pointr64;
+        T.rowindSegments = rowindSegments;
+        T.valueSegments = valueSegments;
+        T.floatSegments = floatSegments;
+        T.floatError = floatError;
+        T.byRow = !byRow;
+        return T;
+    }
+
+    /* This matrix with its values in single precision, sharing the row
+     * indices; dropping the original halves the memory of the values. */
+    @Override
+    public SMat toFloat() {
+        if (null == valueSegments) return this;
+        LargeSMat F = new LargeSMat();
+        F.rows = rows;
+        F.cols = cols;
+        F.vals = vals;
+        F.nonZeros = nonZeros;
+        F.segmentBits = segmentBits;
+        F.segmentMask = segmentMask;
+        F.pointr64 = pointr64;
+        F.rowindSegments = rowindSegments;
+        F.byRow = byRow;
+        F.floatSegments = new float[valueSegments.length][];
+        double error = 0.0;
+        for (int s = 0; s < valueSegments.length; s++) {
+            double[] segment = valueSegments[s];
+            float[] floats = F.floatSegments[s] = new float[segment.length];
+            for (int j = 0; j < segment.length; j++) {
+                floats[j] = (float) segment[j];
+                error += (segment[j] - floats[j]) * (segment[j] - floats[j]);
+            }
+        }
+        F.floatError = Math.sqrt(error);
+        return F;
+    }
+
+    @Override
+    public double sumOfSquares() {
+        double sum = 0.0;
+        if (null == valueSegments) {
+            for (float[] segment : floatSegments) 
+                for (float v : segment) sum += (double) v * v;
+            return sum;
+        }
+        for (double[] segment : valueSegments) 
+            for (double v : segment) sum += v * v;
+        return sum;
+    }
+
+    /* Dot product of outer vector o with x. */
+    double gather(int o, double[] x) {
+        double t = 0.0;
+        long p = pointr64[o], end = pointr64[o+1];
+        while (p < end) {
+            int s = (int) (p >>> segmentBits);
+            int from = (int) p & segmentMask;
+            int to = (int) Math.min(end - ((long) s << segmentBits), segmentMask + 1L);
+            int[] rowind = rowindSegments[s];
+            if (null == valueSegments) {
+                float[] value = floatSegments[s];
+                for (int j = from; j < to; j++) t += value[j] * x[rowind[j]];
+            } else {
+                double[] value = valueSegments[s];
+                for (int j = from; j < to; j++) t += value[j] * x[rowind[j]];
+            }
+            p += to - from;
+        }
+        return t;
+    }
+
+    /* y += a times outer vector o. */
+    void scatter(int o, double a, double[] y) {
+        long p = pointr64[o], end = pointr64[o+1];
+        while (p < end) {
+            int s = (int) (p >>> segmentBits);
+            int from = (int) p & segmentMask;
+            int to = (int) Math.min(end - ((long) s << segmentBits), segmentMask + 1L);
+            int[] rowind = rowindSegments[s];
+            if (null == valueSegments) {
+                float[] value = floatSegments[s];
+                for (int j = from; j < to; j++) y[rowind[j]] += value[j] * a;
+            } else {
+                double[] value = valueSegments[s];
+                for (int j = from; j < to; j++) y[rowind[j]] += value[j] * a;
+            }
+            p += to - from;
+        }
+    }
+
+    /* svd_opb: y = A'A x. */
+    void opb(double[] x, double[] y, double[] temp) {
+        for (int i = 0; i < cols; i++) y[i] = 0;
+        if (byRow) {
+            for (int i = 0; i < rows; i++) temp[i] = gather(i, x);
+            for (int i = 0; i < rows; i++) scatter(i, temp[i], y);
+            return;
+        }
+        for (int i = 0; i < rows; i++) temp[i] = 0.0;
+        for (int i = 0; i < cols; i++) scatter(i, x[i], temp);
+        for (int i = 0; i < cols; i++) y[i] = gather(i, temp);
+    }
+
+    /* svd_opa: y = A x. */
+    void opa(double[] x, double[] y) {
+        if (byRow) {
+            for (int i = 0; i < rows; i++) y[i] = gather(i, x);
+            return;
+        }
+        for (int i = 0; i < rows; i++) y[i] = 0;
+        for (int i = 0; i < cols; i++) scatter(i, x[i], y);
+    }
+}
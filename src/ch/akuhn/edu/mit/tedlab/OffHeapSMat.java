@@ -0,0 +1,199 @@
+/**
+ *  @author Adrian Kuhn
+ *  @author David Erni   
+ *             
+ *      Copyright (c) 2010 University of Bern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ch.akuhn.edu.mit.tedlab;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A sparse matrix with its row indices and values outside the Java heap,
+ * in direct buffers of 2^segmentBits entries each, so that it holds up to
+ * Integer.MAX_VALUE non-zeros; only the column pointers stay on the heap. 
+ * svd_opb and svd_opa dispatch to the kernels of this class. The memory
+ * lives until close(), after which the matrix refuses access; it can be
+ * registered with an arena that closes it.
+ */
+public class OffHeapSMat extends SMat implements Closeable {
+
+    /* 2^27 doubles, a direct buffer of 1 GB. */
+    public static final int SEGMENT_BITS = 27;
+
+    public IntBuffer[] rowindSegments; /* The row indices, in segments. */
+    public DoubleBuffer[] valueSegments; /* The values, in segments. */
+    int segmentBits;
+    int segmentMask;
+
+    public OffHeapSMat(int rows, int cols, int vals) {
+        this(rows, cols, vals, SEGMENT_BITS);
+    }
+
+    public OffHeapSMat(int rows, int cols, int vals, int segmentBits) {
+        if (vals < 0) throw new Error("OffHeapSMat: negative number of non-zeros " + vals);
+        this.rows = rows;
+        this.cols = cols;
+        this.vals = vals;
+        this.segmentBits = segmentBits;
+        this.segmentMask = (1 << segmentBits) - 1;
+        this.pointr = new int[cols + 1];
+        int segments = (int) (((long) vals + segmentMask) >>> segmentBits);
+        this.rowindSegments = new IntBuffer[segments];
+        this.valueSegments = new DoubleBuffer[segments];
+        for (int s = 0; s < segments; s++) {
+            int length = (int) Math.min(1L << segmentBits, (long) vals - ((long) s << segmentBits));
+            rowindSegments[s] = ByteBuffer.allocateDirect(4 * length)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+            valueSegments[s] = ByteBuffer.allocateDirect(8 * length)
+                    .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+    }
+
+    private OffHeapSMat() {
+    }
+
+    /* Copies an SMat off the heap; the SMat can be dropped afterwards. 
+     * Filling a new matrix with set avoids holding both at once. */
+    public static OffHeapSMat copyOf(SMat A) {
+        return copyOf(A, SEGMENT_BITS);
+    }
+
+    public static OffHeapSMat copyOf(SMat A, int segmentBits) {
+        OffHeapSMat O = new OffHeapSMat(A.rows, A.cols, A.vals, segmentBits);
+        if (A.byRow) O.pointr = new int[A.rows + 1];
+        System.arraycopy(A.pointr, 0, O.pointr, 0, O.pointr.length);
+        for (int i = 0; i < A.vals; i++) O.set(i, A.rowind[i], A.valueAt(i));
+        O.byRow = A.byRow;
+        return O;
+    }
+
+    public void set(int i, int row, double value) {
+        rowindSegments[i >>> segmentBits].put(i & segmentMask, row);
+        valueSegments[i >>> segmentBits].put(i & segmentMask, value);
+    }
+
+    public int row(int i) {
+        return rowindSegments[i >>> segmentBits].get(i & segmentMask);
+    }
+
+    public double value(int i) {
+        return valueSegments[i >>> segmentBits].get(i & segmentMask);
+    }
+
+    public void close() {
+        rowindSegments = null;
+        valueSegments = null;
+    }
+
+    void checkOpen() {
+        if (null == valueSegments) throw new IllegalStateException("The off-heap matrix is closed");
+    }
+
+    @Override
+    boolean hasArrays() {
+        return false;
+    }
+
+    @Override
+    public SMat transposeView() {
+        checkOpen();
+        OffHeapSMat T = new OffHeapSMat();
+        T.rows = cols;
+        T.cols = rows;
+        T.vals = vals;
+        T.segmentBits = segmentBits;
+        T.segmentMask = segmentMask;
+        T.pointr = pointr;
+        T.rowindSegments = rowindSegments;
+        T.valueSegments = valueSegments;
+        T.byRow = !byRow;
+        return T;
+    }
+
+    @Override
+    public double sumOfSquares() {
+        checkOpen();
+        double sum = 0.0;
+        for (DoubleBuffer segment : valueSegments) 
+            for (int j = 0; j < segment.capacity(); j++) sum += segment.get(j) * segment.get(j);
+        return sum;
+    }
+
+    /* Dot product of outer vector o with x. */
+    double gather(int o, double[] x) {
+        double t = 0.0;
+        int p = pointr[o], end = pointr[o+1];
+        while (p < end) {
+            int s = p >>> segmentBits;
+            int from = p & segmentMask;
+            int to = (int) Math.min(end - ((long) s << segmentBits), segmentMask + 1L);
+            IntBuffer rowind = rowindSegments[s];
+            DoubleBuffer value = valueSegments[s];
+            for (int j = from; j < to; j++) t += value.get(j) * x[rowind.get(j)];
+            p += to - from;
+        }
+        return t;
+    }
+
+    /* y += a times outer vector o. */
+    void scatter(int o, double a, double[] y) {
+        int p = pointr[o], end = pointr[o+1];
+        while (p < end) {
+            int s = p >>> segmentBits;
+            int from = p & segmentMask;
+            int to = (int) Math.min(end - ((long) s << segmentBits), segmentMask + 1L);
+            IntBuffer rowind = rowindSegments[s];
+            DoubleBuffer value = valueSegments[s];
+            for (int j = from; j < to; j++) y[rowind.get(j)] += value.get(j) * a;
+            p += to - from;
+        }
+    }
+
+    /* svd_opb: y = A'A x. */
+    void opb(double[] x, double[] y, double[] temp) {
+        checkOpen();
+        for (int i = 0; i < cols; i++) y[i] = 0;
+        if (byRow) {
+            for (int i = 0; i < rows; i++) temp[i] = gather(i, x);
+            for (int i = 0; i < rows; i++) scatter(i, temp[i], y);
+            return;
+        }
+        for (int i = 0; i < rows; i++) temp[i] = 0.0;
+        for (int i = 0; i < cols; i++) scatter(i, x[i], temp);
+        for (int i = 0; i < cols; i++) y[i] = gather(i, temp);
+    }
+
+    /* svd_opa: y = A x. */
+    void opa(double[] x, double[] y) {
+        checkOpen();
+        if (byRow) {
+            for (int i = 0; i < rows; i++) y[i] = gather(i, x);
+            return;
+        }
+        for (int i = 0; i < rows; i++) y[i] = 0;
+        for (int i = 0; i < cols; i++) scatter(i, x[i], y);
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ *  @author Adrian Kuhn
+ *  @author David Erni   
+ *             
+ *      Copyright (c) 2010 University of Bern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ch.akuhn.edu.mit.tedlab;
+
+import java.util.Arrays;
+
+/**
+ * Permutations of the rows and columns of an SMat that improve the memory
+ * locality of svd_opb and svd_opa. An order array maps each new index to
+ * the old one, order[new] = old.
+ */
+public class Reordering {
+
+    /***********************************************************************
+     * Reverse Cuthill-McKee order of a square matrix, which gathers the
+     * non-zeros near the diagonal so that the rows touched by a column are
+     * close to each other. The non-zero pattern is symmetrized first.
+     * Each connected component is visited breadth first from a vertex of
+     * minimum degree, with neighbours in increasing degree.
+     ***********************************************************************/
+    public static int[] reverseCuthillMcKee(SMat A) {
+        if (A.rows != A.cols) 
+            throw new IllegalArgumentException("Reverse Cuthill-McKee needs a square matrix");
+        int n = A.cols;
+
+        /* adjacency lists of the pattern of A + A' */
+        int[] degree = new int[n];
+        for (int c = 0; c < n; c++) {
+            for (int j = A.pointr[c]; j < A.pointr[c+1]; j++) {
+                int r = A.rowind[j];
+                if (r == c) continue;
+                degree[c]++;
+                degree[r]++;
+            }
+        }
+        int[] start = new int[n + 1];
+        for (int i = 0; i < n; i++) start[i+1] = start[i] + degree[i];
+        int[] adj = new int[start[n]];
+        int[] fill = Arrays.copyOf(start, n);
+        for (int c = 0; c < n; c++) {
+            for (int j = A.pointr[c]; j < A.pointr[c+1]; j++) {
+                int r = A.rowind[j];
+                if (r == c) continue;
+                adj[fill[c]++] = r;
+                adj[fill[r]++] = c;
+            }
+        }
+        /* a symmetric pattern lists every edge twice */
+        for (int i = 0; i < n; i++) {
+            Arrays.sort(adj, start[i], start[i+1]);
+            int k = start[i];
+            for (int j = start[i]; j < start[i+1]; j++)
+                if (j == start[i] || adj[j] != adj[j-1]) adj[k++] = adj[j];
+            degree[i] = k - start[i];
+        }
+
+        Integer[] byDegree = new Integer[n];
+        for (int i = 0; i < n; i++) byDegree[i] = i;
+        final int[] deg = degree;
+        Arrays.sort(byDegree, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return deg[a] != deg[b] ? (deg[a] < deg[b] ? -1 : 1) : a.compareTo(b);
+            }
+        });
+        int[] rank = new int[n];
+        for (int i = 0; i < n; i++) rank[byDegree[i]] = i;
+
+        int[] order = new int[n];
+        boolean[] visited = new boolean[n];
+        int head = 0, tail = 0;
+        int[] neighbours = new int[n];
+        for (int s = 0; s < n; s++) {
+            int root = byDegree[s];
+            if (visited[root]) continue;
+            visited[root] = true;
+            order[tail++] = root;
+            while (head < tail) {
+                int v = order[head++];
+                int count = 0;
+                for (int j = start[v]; j < start[v] + degree[v]; j++) {
+                    int u = adj[j];
+                    if (!visited[u]) {
+                        visited[u] = true;
+                        neighbours[count++] = rank[u];
+                    }
+                }
+                Arrays.sort(neighbours, 0, count);
+                for (int j = 0; j < count; j++) order[tail++] = byDegree[neighbours[j]];
+            }
+        }
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        return order;
+    }
+
+    /***********************************************************************
+     * Order of the columns of A by decreasing number of non-zeros, which
+     * keeps the entries of frequent terms together. With rows true, the
+     * rows are ordered instead.
+     ***********************************************************************/
+    public static int[] degreeOrder(SMat A, boolean rows) {
+        if (A.byRow) return degreeOrder(A.transposeView(), !rows);
+        int n = rows ? A.rows : A.cols;
+        final int[] degree = new int[n];
+        if (rows) {
+            for (int j = 0; j < A.vals; j++) degree[A.rowind[j]]++;
+        } else {
+            for (int c = 0; c < n; c++) degree[c] = A.pointr[c+1] - A.pointr[c];
+        }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, new java.util.Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return degree[a] != degree[b] ? (degree[a] > degree[b] ? -1 : 1) : a.compareTo(b);
+            }
+        });
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) result[i] = order[i];
+        return result;
+    }
+
+    /* Inverse of an order: the new index of each old one. */
+    public static int[] inverse(int[] order) {
+        int[] inverse = new int[order.length];
+        for (int i = 0; i < order.length; i++) inverse[order[i]] = i;
+        return inverse;
+    }
+
+    /***********************************************************************
+     * Returns A with its rows and columns permuted, the row indices of each
+     * column in increasing order.
+     ***********************************************************************/
+    public static SMat permute(SMat A, int[] rowOrder, int[] colOrder) {
+        if (!A.hasArrays()) 
+            throw new IllegalArgumentException("Only an SMat of arrays can be reordered");
+        if (A.byRow) return permute(A.transposeView(), colOrder, rowOrder).transposeView();
+        int[] newRow = inverse(rowOrder);
+        SMat B = A.alike(A.rows, A.cols, A.vals);
+        int longest = 0;
+        for (int c = 0; c < A.cols; c++) 
+            longest = Math.max(longest, A.pointr[c+1] - A.pointr[c]);
+        /* the entries of a column by new row index, each packed with its 
+         * old position */
+        long[] column = new long[longest];
+        int n = 0;
+        for (int c = 0; c < A.cols; c++) {
+            int old = colOrder[c];
+            int length = A.pointr[old+1] - A.pointr[old];
+            for (int k = 0; k < length; k++) {
+                int j = A.pointr[old] + k;
+                column[k] = ((long) newRow[A.rowind[j]] << 32) | j;
+            }
+            Arrays.sort(column, 0, length);
+            B.pointr[c] = n;
+            for (int k = 0; k < length; k++) {
+                B.rowind[n] = (int) (column[k] >>> 32);
+                A.copyValue((int) column[k], B, n);
+                n++;
+            }
+        }
+        B.pointr[A.cols] = n;
+        return B;
+    }
+
+    /***********************************************************************
+     * Undoes the permutation of the rows of a matrix in the rows of M, so
+     * that each row of M is indexed by the original order again.
+     ***********************************************************************/
+    public static void restore(DMat M, int[] order) {
+        double[] orig = new double[order.length];
+        for (int r = 0; r < M.rows; r++) restore(M.value[r], order, orig);
+    }
+
+    /* Restores the original order of a single vector, with a work array 
+     * of at least its length. */
+    public static void restore(double[] row, int[] order, double[] work) {
+        for (int i = 0; i < order.length; i++) work[order[i]] = row[i];
+        System.arraycopy(work, 0, row, 0, order.length);
+    }
+}
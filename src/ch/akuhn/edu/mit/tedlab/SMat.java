@@ -32,6 +32,19 @@ public class SMat {
     public int[] pointr; /* For each col (plus 1), index of first non-zero entry. */
     public int[] rowind; /* For each nz entry, the row index. */
     public double[] value; /* For each nz entry, the value. */
+    public float[] floatValue; /*
+     * For each nz entry, the value in single precision, if value is null.
+     * Products with the matrix still accumulate in double precision.
+     */
+    public double floatError; /*
+     * The Frobenius norm of the rounding of the values to single precision,
+     * which bounds how far each singular value moves; zero if the values
+     * are exact, as integer counts below 2^24 are.
+     */
+    public boolean byRow; /*
+     * Whether pointr and rowind index rows and their column indices 
+     * instead (compressed sparse row), as in a transpose view.
+     */
 
     public SMat(int rows, int cols, int vals) {
         this.rows = rows;
@@ -41,4 +54,83 @@ public class SMat {
         this.rowind = new int[vals];
         this.value = new double[vals];
     }
+
+    SMat() {
+    }
+
+    /* The transpose of this matrix, sharing its arrays: compressed sparse
+     * columns of A are the compressed sparse rows of A'. */
+    public SMat transposeView() {
+        SMat T = new SMat();
+        T.rows = cols;
+        T.cols = rows;
+        T.vals = vals;
+        T.pointr = pointr;
+        T.rowind = rowind;
+        T.value = value;
+        T.floatValue = floatValue;
+        T.floatError = floatError;
+        T.byRow = !byRow;
+        return T;
+    }
+
+    /* This matrix with its values in single precision, sharing the index
+     * arrays; dropping the original halves the memory of the values. Of 
+     * the matrices not held in arrays, only those that override this
+     * have a single precision form. */
+    public SMat toFloat() {
+        if (!hasArrays()) 
+            throw new Error("SMat.toFloat: " + getClass().getSimpleName() + " has no single precision form");
+        if (null == value) return this;
+        SMat F = new SMat();
+        F.rows = rows;
+        F.cols = cols;
+        F.vals = vals;
+        F.pointr = pointr;
+        F.rowind = rowind;
+        F.byRow = byRow;
+        F.floatValue = new float[vals];
+        double error = 0.0;
+        for (int i = 0; i < vals; i++) {
+            F.floatValue[i] = (float) value[i];
+            error += (value[i] - F.floatValue[i]) * (value[i] - F.floatValue[i]);
+        }
+        F.floatError = Math.sqrt(error);
+        return F;
+    }
+
+    /* An empty matrix with the precision of this one. */
+    SMat alike(int rows, int cols, int vals) {
+        if (null != value) return new SMat(rows, cols, vals);
+        SMat M = new SMat();
+        M.rows = rows;
+        M.cols = cols;
+        M.vals = vals;
+        M.pointr = new int[cols + 1];
+        M.rowind = new int[vals];
+        M.floatValue = new float[vals];
+        return M;
+    }
+
+    /* Whether pointr, rowind and value hold the matrix; the subclasses
+     * that store it otherwise bring their own kernels. */
+    boolean hasArrays() {
+        return true;
+    }
+
+    /* The squared Frobenius norm, trace(A'A). */
+    public double sumOfSquares() {
+        double sum = 0.0;
+        for (int i = 0; i < vals; i++) sum += valueAt(i) * valueAt(i);
+        return sum;
+    }
+
+    double valueAt(int i) {
+        return null != value ? value[i] : floatValue[i];
+    }
+
+    void copyValue(int i, SMat to, int j) {
+        if (null != value) to.value[j] = value[i];
+        else to.floatValue[j] = floatValue[i];
+    }
 }
\ No newline at end of file
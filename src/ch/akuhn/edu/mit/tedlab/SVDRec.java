@@ -35,6 +35,11 @@ public class SVDRec {
      * Transpose of right singular vectors. (d by n) The vectors are
      * the rows of Vt.
      */
+    public double[] bounds; /* Residual error bound of each singular triplet. (length d) */
+    public boolean truncated; /*
+     * Whether the run was cut short by its budget or by cancellation, so
+     * that only the triplets converged by then are returned.
+     */
 
     public SVDRec() {
     }
@@ -0,0 +1,156 @@
+/**
+ *  @author Adrian Kuhn
+ *  @author David Erni   
+ *             
+ *      Copyright (c) 2010 University of Bern
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package ch.akuhn.edu.mit.tedlab;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Cheap estimate of the distribution of the singular values of A by
+ * stochastic Lanczos quadrature. A few Lanczos runs on A'A (through
+ * svd_opb) from random starting vectors give Gauss quadrature nodes and
+ * weights, which are binned into a histogram of the singular values.
+ * This costs probes * steps products with A'A, against the many hundred
+ * steps of a full LAS2 run.
+ */
+public class SpectralDensity {
+    public double[] lower; /* Lower end of each singular value bin. */
+    public double[] upper; /* Upper end of each singular value bin. */
+    public double[] count; /* Estimated number of singular values in each bin. */
+
+    public SpectralDensity(int bins) {
+        this.lower = new double[bins];
+        this.upper = new double[bins];
+        this.count = new double[bins];
+    }
+
+    /***********************************************************************
+     * Estimates the histogram of the singular values of A.
+     *
+     * probes   number of random starting vectors
+     * steps    number of Lanczos steps from each of them
+     * bins     number of histogram bins between 0 and the largest 
+     *          singular value
+     * seed     random seed of the starting vectors
+     ***********************************************************************/
+    public static SpectralDensity estimate(SMat A, int probes, int steps, int bins, long seed) {
+        int n = A.cols;
+        steps = Math.min(steps, n);
+        double[] temp = new double[A.rows];
+        double[] q = new double[n];
+        double[] qPrev = new double[n];
+        double[] w = new double[n];
+        double[][] nodes = new double[probes][];
+        double[][] weights = new double[probes][];
+        double max = 0.0;
+        Random random = new Random(seed);
+        Svdlib svd = new Svdlib();
+
+        for (int p = 0; p < probes; p++) {
+            /* Rademacher starting vector of unit length */
+            for (int i = 0; i < n; i++) q[i] = random.nextBoolean() ? 1.0 : -1.0;
+            Svdlib.svd_dscal(n, 1.0 / Math.sqrt(n), q, 1);
+            for (int i = 0; i < n; i++) qPrev[i] = 0.0;
+            double[] alf = new double[steps];
+            double[] bet = new double[steps];
+            double beta = 0.0;
+            int m = 0;
+            while (m < steps) {
+                Svdlib.svd_opb(A, q, w, temp);
+                Svdlib.svd_daxpy(n, -beta, qPrev, 1, w, 1);
+                alf[m] = Svdlib.svd_ddot(n, q, 1, w, 1);
+                Svdlib.svd_daxpy(n, -alf[m], q, 1, w, 1);
+                m++;
+                beta = Math.sqrt(Svdlib.svd_ddot(n, w, 1, w, 1));
+                if (m == steps || beta <= Math.ulp(1.0) * Math.abs(alf[m-1])) break;
+                bet[m] = beta;
+                double[] swap = qPrev;
+                qPrev = q;
+                q = swap;
+                Svdlib.svd_datx(n, 1.0 / beta, w, 1, q, 1);
+            }
+
+            /* eigenvalues of T are the nodes, squared first components
+             * of its eigenvectors the weights */
+            double[] z = new double[m * m];
+            for (int i = 0; i < m * m; i += m + 1) z[i] = 1.0;
+            double[] d = Arrays.copyOf(alf, m);
+            double[] e = Arrays.copyOf(bet, m);
+            svd.imtql2(m, m, d, e, z);
+            if (svd.ierr != 0) {
+                Svdlib.svd_error("SpectralDensity: imtql2 failed to converge (ierr = %d)", svd.ierr);
+                continue;
+            }
+            nodes[p] = new double[m];
+            weights[p] = new double[m];
+            for (int k = 0; k < m; k++) {
+                nodes[p][k] = Math.sqrt(Svdlib.svd_dmax(d[k], 0.0));
+                weights[p][k] = z[k] * z[k] * n / probes;
+                max = Svdlib.svd_dmax(max, nodes[p][k]);
+            }
+        }
+
+        SpectralDensity D = new SpectralDensity(bins);
+        double width = max * (1.0 + 1e-9) / bins;
+        for (int b = 0; b < bins; b++) {
+            D.lower[b] = b * width;
+            D.upper[b] = (b + 1) * width;
+        }
+        for (int p = 0; p < probes; p++) {
+            if (nodes[p] == null) continue;
+            for (int k = 0; k < nodes[p].length; k++) {
+                int b = width > 0 ? Svdlib.svd_imin((int) (nodes[p][k] / width), bins - 1) : 0;
+                D.count[b] += weights[p][k];
+            }
+        }
+        return D;
+    }
+
+    /***********************************************************************
+     * Estimates the number of the largest singular values whose squares
+     * add up to the given fraction of the squared Frobenius norm of A.
+     ***********************************************************************/
+    public int dimensionsForEnergy(double fraction) {
+        double total = 0.0;
+        for (int b = 0; b < count.length; b++) total += count[b] * center(b) * center(b);
+        double energy = 0.0;
+        double k = 0.0;
+        for (int b = count.length - 1; b >= 0; b--) {
+            double binEnergy = count[b] * center(b) * center(b);
+            if (energy + binEnergy >= fraction * total && binEnergy > 0) {
+                /* interpolate within the bin */
+                k += count[b] * (fraction * total - energy) / binEnergy;
+                return (int) Math.ceil(k);
+            }
+            energy += binEnergy;
+            k += count[b];
+        }
+        return (int) Math.ceil(k);
+    }
+
+    private double center(int b) {
+        return (lower[b] + upper[b]) / 2;
+    }
+}
@@ -46,6 +46,11 @@ import static ch.akuhn.edu.mit.tedlab.Svdlib.storeVals.STORQ;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.Scanner;
 
@@ -117,6 +122,39 @@ public class Svdlib {
         return  Math.min(a, b);
     }
 
+    /* Unit stride fast paths of the BLAS-1 kernels, chosen once when the
+     * class is loaded. Their plain indexed loops are compiled to SIMD code
+     * by the JIT, which the generic stride loops are not; the dot product
+     * is split over four accumulators to break its dependency chain, which
+     * changes the rounding of the sum. -Dsvdlib.blas=stride falls back to
+     * the generic loops. */
+    static final boolean UNIT_STRIDE = !"stride".equals(System.getProperty("svdlib.blas"));
+
+    static void dscal_unit(int n, double da, double[] dx) {
+        for (int i = 0; i < n; i++) dx[i] *= da;
+    }
+
+    static void datx_unit(int n, double da, double[] dx, double[] dy) {
+        for (int i = 0; i < n; i++) dy[i] = da * dx[i];
+    }
+
+    static void daxpy_unit(int n, double da, double[] dx, double[] dy) {
+        for (int i = 0; i < n; i++) dy[i] += da * dx[i];
+    }
+
+    static double ddot_unit(int n, double[] dx, double[] dy) {
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += dx[i] * dy[i];
+            s1 += dx[i+1] * dy[i+1];
+            s2 += dx[i+2] * dy[i+2];
+            s3 += dx[i+3] * dy[i+3];
+        }
+        for (; i < n; i++) s0 += dx[i] * dy[i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
     /**************************************************************
      * Function scales a vector by a constant. * Based on Fortran-77 routine
      * from Linpack by J. Dongarra *
@@ -124,6 +162,14 @@ public class Svdlib {
     static void svd_dscal(int n, double da, double[] dx, int incx) {
 
         if (n <= 0 || incx == 0) return;
+        if (UNIT_STRIDE && incx == 1) {
+            dscal_unit(n, da, dx);
+            return;
+        }
+        dscal_stride(n, da, dx, incx);
+    }
+
+    static void dscal_stride(int n, double da, double[] dx, int incx) {
         int ix = (incx < 0) ? n - 1 : 0;
         for (int i=0; i < n; i++) {
             dx[ix] *= da;
@@ -141,6 +187,10 @@ public class Svdlib {
         assert incx == 1 || incx == -1 || incx == 0;
         assert incy == 1 || incy == -1 || incy == 0;
         if (n <= 0 || incx == 0 || incy == 0) return;
+        if (UNIT_STRIDE && incx == 1 && incy == 1) {
+            datx_unit(n, da, dx, dy);
+            return;
+        }
 
         int ix = (incx == 1) ? 0 : n - 1;
         int iy = (incy == 1) ? 0 : n - 1;
@@ -164,7 +214,14 @@ public class Svdlib {
         assert incx == 1 || incx == -1 || incx == 0;
         assert incy == 1 || incy == -1 || incy == 0;
         if (n <= 0 || incx == 0 || incy == 0) return;
+        if (UNIT_STRIDE && incx == 1 && incy == 1) {
+            System.arraycopy(dx, ix0, dy, iy0, n);
+            return;
+        }
+        dcopy_stride(n, dx, ix0, incx, dy, iy0, incy);
+    }
 
+    static void dcopy_stride(int n, double[] dx, int ix0, int incx, double[] dy, int iy0, int incy) {
         int ix = (incx == 1) ? ix0 : n - 1 + ix0;
         int iy = (incy == 1) ? iy0 : n - 1 + iy0;
         for (int i = 0; i < n; i++) {
@@ -179,6 +236,11 @@ public class Svdlib {
      * routine from Linpack by J. Dongarra *
      **************************************************************/
     static double svd_ddot(int n, double[] dx, int incx, double[] dy, int incy) {
+        if (UNIT_STRIDE && incx == 1 && incy == 1) return n <= 0 ? 0.0 : ddot_unit(n, dx, dy);
+        return ddot_stride(n, dx, incx, dy, incy);
+    }
+
+    static double ddot_stride(int n, double[] dx, int incx, double[] dy, int incy) {
         double dot_product = 0.0;
         int ix0 = 0;
         int iy0 = 0;
@@ -204,6 +266,15 @@ public class Svdlib {
     static void svd_daxpy(int n, double da, double[] dx, int incx, double[] dy,
             int incy) {
         if (n <= 0 || incx == 0 || incy == 0) return;
+        if (UNIT_STRIDE && incx == 1 && incy == 1) {
+            daxpy_unit(n, da, dx, dy);
+            return;
+        }
+        daxpy_stride(n, da, dx, incx, dy, incy);
+    }
+
+    static void daxpy_stride(int n, double da, double[] dx, int incx, double[] dy,
+            int incy) {
 
         int ix = (incx == 1) ? 0 : n - 1;
         int iy = (incy == 1) ? 0 : n - 1;
@@ -289,6 +360,26 @@ public class Svdlib {
      * vector). *
      **************************************************************/
     static void svd_opb(SMat A, double[] x, double[] y, double[] temp) {
+        if (A instanceof LargeSMat) {
+            ((LargeSMat) A).opb(x, y, temp);
+            return;
+        }
+        if (A instanceof OffHeapSMat) {
+            ((OffHeapSMat) A).opb(x, y, temp);
+            return;
+        }
+        if (A instanceof HybridSMat) {
+            ((HybridSMat) A).opb(x, y, temp);
+            return;
+        }
+        if (A instanceof CompressedSMat) {
+            ((CompressedSMat) A).opb(x, y, temp);
+            return;
+        }
+        if (null == A.value) {
+            opb_float(A, x, y, temp);
+            return;
+        }
         int[] pointr = A.pointr;
         int[] rowind = A.rowind;
         double[] value = A.value;
@@ -300,6 +391,23 @@ public class Svdlib {
 
         for (int i = 0; i < A.rows; i++) temp[i] = 0.0;
 
+        if (A.byRow) {
+            /* A x gathers along the rows, A'(A x) scatters */
+            for (int i = 0; i < A.rows; i++) {
+                int end = pointr[i+1];
+                double t = 0.0;
+                for (int j = pointr[i]; j < end; j++)
+                    t += value[j] * x[rowind[j]];
+                temp[i] = t;
+            }
+            for (int i = 0; i < A.rows; i++) {
+                int end = pointr[i+1];
+                for (int j = pointr[i]; j < end; j++)
+                    y[rowind[j]] += value[j] * temp[i];
+            }
+            return;
+        }
+
         for (int i = 0; i < A.cols; i++) {
             int end = pointr[i+1];
             for (int j = pointr[i]; j < end; j++)
@@ -313,15 +421,107 @@ public class Svdlib {
         return;
     }
 
+    /* svd_opb of a matrix stored in single precision: the values are read
+     * as floats, which halves their memory traffic, and the products are
+     * accumulated in double precision. */
+    static void opb_float(SMat A, double[] x, double[] y, double[] temp) {
+        int[] pointr = A.pointr;
+        int[] rowind = A.rowind;
+        float[] value = A.floatValue;
+
+        for (int i = 0; i < A.cols; i++) y[i] = 0;
+        if (A.byRow) {
+            for (int i = 0; i < A.rows; i++) {
+                int end = pointr[i+1];
+                double t = 0.0;
+                for (int j = pointr[i]; j < end; j++)
+                    t += value[j] * x[rowind[j]];
+                temp[i] = t;
+            }
+            for (int i = 0; i < A.rows; i++) {
+                int end = pointr[i+1];
+                for (int j = pointr[i]; j < end; j++)
+                    y[rowind[j]] += value[j] * temp[i];
+            }
+            return;
+        }
+        for (int i = 0; i < A.rows; i++) temp[i] = 0.0;
+        for (int i = 0; i < A.cols; i++) {
+            int end = pointr[i+1];
+            for (int j = pointr[i]; j < end; j++)
+                temp[rowind[j]] += value[j] * x[i];
+        }
+        for (int i = 0; i < A.cols; i++) {
+            int end = pointr[i+1];
+            double t = 0.0;
+            for (int j = pointr[i]; j < end; j++)
+                t += value[j] * temp[rowind[j]];
+            y[i] = t;
+        }
+    }
+
+    /* svd_opa of a matrix stored in single precision. */
+    static void opa_float(SMat A, double[] x, double[] y) {
+        int[] pointr = A.pointr, rowind = A.rowind;
+        float[] value = A.floatValue;
+
+        if (A.byRow) {
+            for (int i = 0; i < A.rows; i++) {
+                int end = pointr[i+1];
+                double t = 0.0;
+                for (int j = pointr[i]; j < end; j++)
+                    t += value[j] * x[rowind[j]];
+                y[i] = t;
+            }
+            return;
+        }
+        for (int i = 0; i < A.rows; i++) y[i] = 0;
+        for (int i = 0; i < A.cols; i++) {
+            int end = pointr[i+1];
+            for (int j = pointr[i]; j < end; j++)
+                y[rowind[j]] += value[j] * x[i];
+        }
+    }
+
     /***********************************************************
      * multiplication of matrix A by vector x, where A is * nrow by ncol (nrow
      * >> ncol). y stores product vector. *
      ***********************************************************/
     static void svd_opa(SMat A, double[] x, double[] y) {
+        if (A instanceof LargeSMat) {
+            ((LargeSMat) A).opa(x, y);
+            return;
+        }
+        if (A instanceof OffHeapSMat) {
+            ((OffHeapSMat) A).opa(x, y);
+            return;
+        }
+        if (A instanceof HybridSMat) {
+            ((HybridSMat) A).opa(x, y);
+            return;
+        }
+        if (A instanceof CompressedSMat) {
+            ((CompressedSMat) A).opa(x, y);
+            return;
+        }
+        if (null == A.value) {
+            opa_float(A, x, y);
+            return;
+        }
         int[] pointr = A.pointr, rowind = A.rowind;
         double[] value = A.value;
 
         //SVDCount[SVD_MXV]++;
+        if (A.byRow) {
+            for (int i = 0; i < A.rows; i++) {
+                int end = pointr[i+1];
+                double t = 0.0;
+                for (int j = pointr[i]; j < end; j++)
+                    t += value[j] * x[rowind[j]];
+                y[i] = t;
+            }
+            return;
+        }
         for (int i = 0; i < A.rows; i++) y[i] = 0;
 
         for (int i = 0; i < A.cols; i++) {
@@ -484,7 +684,17 @@ public class Svdlib {
     /* Efficiently transposes a sparse matrix. */
     static SMat svdTransposeS(SMat S) {
         int r, c, i, j;
-        SMat N = new SMat(S.cols, S.rows, S.vals);
+        if (!S.hasArrays()) 
+            throw new Error("svdTransposeS: a matrix not held in arrays is transposed by transposeView");
+        if (S.byRow) {
+            /* the arrays of a transpose view already hold the transpose */
+            SMat N = S.alike(S.cols, S.rows, S.vals);
+            System.arraycopy(S.pointr, 0, N.pointr, 0, N.pointr.length);
+            System.arraycopy(S.rowind, 0, N.rowind, 0, S.vals);
+            for (i = 0; i < S.vals; i++) S.copyValue(i, N, i);
+            return N;
+        }
+        SMat N = S.alike(S.cols, S.rows, S.vals);
         /* Count number nz in each row. */
         for (i = 0; i < S.vals; i++)
             N.pointr[S.rowind[i]]++;
@@ -499,12 +709,85 @@ public class Svdlib {
                 r = S.rowind[i];
                 j = N.pointr[r + 1]++;
                 N.rowind[j] = c;
-                N.value[j] = S.value[i];
+                S.copyValue(i, N, j);
             }
         }
         return N;
     }
 
+    static final int PARALLEL_TRANSPOSE_MIN = 1 << 16;
+
+    /* Transposes S with row ranges of about equal non-zeros run in
+     * parallel. The entries of each row are counted first; then each range
+     * reads the columns in order and fills the rows it owns, so the row
+     * indices of each column of the result are increasing. Besides the
+     * result it only needs one cursor per row, whatever the number of 
+     * threads, for which each range reads all of the row indices. */
+    static SMat svdTransposeS(final SMat S, int threads) {
+        if (threads <= 1 || S.byRow || S.vals < PARALLEL_TRANSPOSE_MIN) return svdTransposeS(S);
+        final SMat N = S.alike(S.cols, S.rows, S.vals);
+        for (int i = 0; i < S.vals; i++) N.pointr[S.rowind[i] + 1]++;
+        for (int r = 0; r < S.rows; r++) N.pointr[r + 1] += N.pointr[r];
+        final int[] next = new int[S.rows];
+        System.arraycopy(N.pointr, 0, next, 0, S.rows);
+        final int[] bounds = new int[threads + 1];
+        int r = 0;
+        for (int t = 1; t < threads; t++) {
+            long target = (long) S.vals * t / threads;
+            while (r < S.rows && N.pointr[r] < target) r++;
+            bounds[t] = r;
+        }
+        bounds[threads] = S.rows;
+
+        /* fill the rows of each range */
+        runRanges(threads, new Range() {
+            public void run(int t) {
+                int low = bounds[t], high = bounds[t+1];
+                for (int c = 0; c < S.cols; c++) {
+                    for (int i = S.pointr[c]; i < S.pointr[c+1]; i++) {
+                        int r = S.rowind[i];
+                        if (r < low || r >= high) continue;
+                        int j = next[r]++;
+                        N.rowind[j] = c;
+                        S.copyValue(i, N, j);
+                    }
+                }
+            }
+        });
+        return N;
+    }
+
+    interface Range {
+        void run(int t);
+    }
+
+    /* Runs ranges 0..threads-1 each on its own thread and waits for them. */
+    static void runRanges(int threads, final Range range) {
+        Thread[] workers = new Thread[threads];
+        final Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        range.run(id);
+                    } catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        try {
+            for (int t = 0; t < threads; t++) workers[t].join();
+        } catch (InterruptedException e) {
+            throw new Error("svdTransposeS: interrupted", e);
+        }
+        if (null != failure[0]) throw new Error("svdTransposeS: a range failed", failure[0]);
+    }
+
     /*************************************************************************
     (c) Copyright 2003
        Douglas Rohde
@@ -536,6 +819,93 @@ adapted from SVDPACKC, which is
     double[] OPBTemp;
     double eps, eps1, reps, eps34;
     long ierr;
+
+    /* Adaptive rank: stop the Lanczos run as soon as the converged largest
+     * singular values capture this fraction of the squared Frobenius norm
+     * of A, and return only those. 0 disables the criterion. */
+    public double targetEnergy = 0;
+    /* Adaptive rank: stop as soon as the ratio of two consecutive converged
+     * largest singular values reaches this gap, and return the ones above
+     * the gap. 0 disables the criterion. */
+    public double targetGap = 0;
+    /* Number of singular values chosen by the adaptive criteria in the last
+     * run, or 0 if none was met. */
+    public int adaptiveDimensions = 0;
+    double traceB;
+    /* Budget: stop the Lanczos run after this many milliseconds of wall
+     * clock time. 0 disables the budget. */
+    public long timeBudget = 0;
+    /* Budget: stop the Lanczos run after this many Lanczos steps, below the
+     * iterations limit of svdLAS2. 0 disables the budget. */
+    public int stepBudget = 0;
+    /* Stop as soon as this many largest singular values are within the
+     * kappa tolerance of svdLAS2, and return only those. 0 disables it. */
+    public int targetConverged = 0;
+    /* Polled between Lanczos steps; the run stops once it is cancelled. */
+    public Cancellation cancellation = null;
+    /* Whether the last run was stopped by its budget or by cancellation. */
+    public boolean budgetExpired = false;
+    /* Checkpoint: append the Lanczos state to this file every 
+     * checkpointInterval steps, so that resumeLAS2 can continue the run
+     * after a crash. null disables checkpoints. */
+    public File checkpointFile = null;
+    public int checkpointInterval = 50;
+    LanczosCheckpoint checkpoint;
+    /* Transposing a wide A: the number of threads of the transpose, or
+     * whether to run the Lanczos steps on a transpose view that shares the
+     * arrays of A instead of a transposed copy. */
+    public int transposeThreads = Runtime.getRuntime().availableProcessors();
+    public boolean implicitTranspose = false;
+    /* Reordering of the rows and columns of A before the Lanczos run, for
+     * the memory locality of svd_opb and svd_opa. The singular vectors are
+     * returned in the original order. Reverse Cuthill-McKee falls back to
+     * the degree order for a rectangular matrix. */
+    public static final int REORDER_NONE = 0;
+    public static final int REORDER_RCM = 1;
+    public static final int REORDER_DEGREE = 2;
+    public int reordering = REORDER_NONE;
+    /* The reordered position of each column, which keeps the random
+     * starting vectors those of the original order. */
+    int[] startPosition;
+    /* Mixed precision: keep the Lanczos vectors in single precision, 
+     * which halves the memory of LanStore and the traffic of the 
+     * reorthogonalization; the arithmetic stays in double precision. If a
+     * returned triplet has a residual bound above floatTolerance times its
+     * singular value, the run is repeated with double vectors, and 
+     * floatRejected is set. A matrix stored in single precision, see 
+     * SMat.toFloat, needs no switch; its rounding error is added to the
+     * residual bounds, and if they are out of tolerance the run is 
+     * repeated on doubleMatrix, the matrix in double precision, if set. */
+    public boolean floatLanStore = false;
+    public double floatTolerance = 1e-5;
+    public boolean floatRejected = false;
+    public SMat doubleMatrix;
+    float[][] LanStoreF;
+    /* Keep the Lanczos vectors outside the Java heap, in direct buffers
+     * that are dropped when svdLAS2 returns. They come from directMemory,
+     * if set. The singular vectors of the result stay on the heap, in 
+     * DMat.value: they are dimensions * (rows + cols) doubles against the
+     * steps * cols of the Lanczos vectors, and a sink avoids them. */
+    public boolean offHeapLanStore = false;
+    public DirectMemory directMemory;
+    DoubleBuffer[] LanStoreD;
+    /* A symmetric A: the left singular vectors are not computed, R.Ut is
+     * R.Vt. They are equal for a positive semidefinite A, such as a 
+     * co-occurrence matrix; otherwise a left vector is the right one 
+     * times the sign of its eigenvalue. Saves svd_opa per vector and the 
+     * memory of Ut. */
+    public boolean symmetric = false;
+    /* Hand each singular triplet to this sink as soon as ritvec finishes 
+     * it, instead of returning Ut and Vt; the Ritz vectors are then formed
+     * one at a time. null keeps them in the returned SVDRec. */
+    public SingularVectorSink sink = null;
+    /* The orders to restore and whether A was transposed, for the sink. */
+    int[] sinkRowOrder, sinkColOrder;
+    boolean sinkTranspose;
+    boolean resuming;
+    long deadline;
+    boolean stepLimited;
+    double acceptKappa;
     /*
 double rnm, anorm, tol;
 FILE *fp_out1, *fp_out2;
@@ -803,10 +1173,36 @@ LAS2         ritvec, lanso
         return svdLAS2(A, dimensions, 0, end, kappa);
     }
 
+    /* Continues the svdLAS2A run recorded in checkpointFile, with the same
+     * matrix and parameters. The result is identical to that of an 
+     * uninterrupted run. */
+    public SVDRec resumeLAS2A(SMat A, int dimensions) {
+        resuming = true;
+        try {
+            return svdLAS2A(A, dimensions);
+        } finally {
+            resuming = false;
+        }
+    }
+
+    /* Continues the svdLAS2 run recorded in checkpointFile. */
+    public SVDRec resumeLAS2(SMat A, int dimensions, int iterations, double[] end, 
+            double kappa) {
+        resuming = true;
+        try {
+            return svdLAS2(A, dimensions, iterations, end, kappa);
+        } finally {
+            resuming = false;
+        }
+    }
+
     public SVDRec svdLAS2(SMat A, int dimensions, int iterations, double[] end, 
             double kappa) {
         boolean transpose = false;
         int n, m, i, steps;
+        SMat A0 = A;
+        int dimensions0 = dimensions, iterations0 = iterations;
+        double kappa0 = kappa;
         double[][] wptr = new double[10][];
         double[] ritz;
         double[] bnd;
@@ -838,16 +1234,36 @@ LAS2         ritvec, lanso
             return null;
         }
 
+        if (symmetric && A.rows != A.cols) 
+            throw new Error("svdLAS2: a symmetric matrix must be square");
+
         /* If A is wide, the SVD is computed on its transpose for speed. */
         if (A.cols >= A.rows * 1.2) {
             if (SVDVerbosity > 0) printf("TRANSPOSING THE MATRIX FOR SPEED\n");
             transpose = true;
-            A = svdTransposeS(A);
+            A = implicitTranspose || !A.hasArrays() ? A.transposeView() 
+                    : svdTransposeS(A, transposeThreads);
+        }
+
+        int[] rowOrder = null, colOrder = null;
+        startPosition = null;
+        /* a matrix not held in arrays is decomposed in its own order */
+        if (reordering != REORDER_NONE && A.hasArrays()) {
+            if (reordering == REORDER_RCM && A.rows == A.cols) {
+                rowOrder = colOrder = Reordering.reverseCuthillMcKee(A);
+            } else {
+                rowOrder = Reordering.degreeOrder(A, true);
+                colOrder = Reordering.degreeOrder(A, false);
+            }
+            A = Reordering.permute(A, rowOrder, colOrder);
+            startPosition = Reordering.inverse(colOrder);
         }
 
         n = A.cols;
 
         machar(); // XXX has side effect, computes machine precision
+        /* the orthogonality bounds track the precision of the stored vectors */
+        if (floatLanStore) eps = svd_dmax(eps, Math.ulp(1.0f));
 
         eps1 = eps * Math.sqrt((double) n);
         reps = Math.sqrt(eps);
@@ -870,8 +1286,29 @@ LAS2         ritvec, lanso
         fake_memset_127(bnd);
 
         LanStore = new double[iterations + MAXLL][];
+        LanStoreF = floatLanStore ? new float[iterations + MAXLL][] : null;
+        LanStoreD = offHeapLanStore && !floatLanStore ? new DoubleBuffer[iterations + MAXLL] : null;
+        if ((floatLanStore || offHeapLanStore) && null != checkpointFile)
+            throw new Error("svdLAS2: checkpoints need double precision Lanczos vectors on the heap");
+        if ((floatLanStore || null != doubleMatrix) && null != sink)
+            throw new Error("svdLAS2: a sink cannot take vectors that may be rejected for their precision");
         OPBTemp = svd_doubleArray(A.rows, false, "las2: OPBTemp");
 
+        /* trace(A'A), the total energy for the adaptive rank */
+        traceB = A.sumOfSquares();
+        adaptiveDimensions = 0;
+        budgetExpired = false;
+        floatRejected = false;
+        deadline = timeBudget > 0 ? System.currentTimeMillis() + timeBudget : 0;
+        acceptKappa = svd_dmax(fabs(kappa), eps34);
+        stepLimited = stepBudget > 0 && stepBudget < iterations;
+        if (stepLimited) iterations = stepBudget;
+        checkpoint = null;
+        if (null != checkpointFile) {
+            checkpoint = new LanczosCheckpoint(checkpointFile, n, A.vals, 
+                    LanStore.length, wptr[6].length);
+        }
+
         /* Actually run the lanczos thing: */
         int[] ref_neig = new int[] { 0 }; // XXX wrap neig 
         steps = lanso(A, iterations, dimensions, end[0], end[1], ritz, bnd, wptr, 
@@ -897,17 +1334,40 @@ LAS2         ritvec, lanso
         wptr[7] = null;
         wptr[8] = null;
 
+        if (adaptiveDimensions > 0) {
+            dimensions = svd_imin(dimensions, adaptiveDimensions);
+            if (SVDVerbosity > 0)
+                printf("ADAPTIVE DIMENSIONS       = %6d\n", dimensions);
+        }
+
         /* Compute eigenvectors */
         kappa = svd_dmax(fabs(kappa), eps34);
 
         R = new SVDRec();
         R.d  = /*svd_imin(nsig, dimensions)*/dimensions;
-        R.Ut = new DMat(R.d, A.rows);
+        if (null == sink) {
+            R.Vt = new DMat(R.d, A.cols);
+            R.Ut = symmetric ? R.Vt : new DMat(R.d, A.rows);
+        }
         R.S  = svd_doubleArray(R.d, true, "las2: R->s");
-        R.Vt = new DMat(R.d, A.cols);
+        R.bounds = svd_doubleArray(R.d, true, "las2: R->bounds");
+        sinkRowOrder = rowOrder;
+        sinkColOrder = colOrder;
+        sinkTranspose = transpose;
 
         ritvec(n, A, R, kappa, ritz, bnd, wptr[6], wptr[9], wptr[5], steps, 
                 neig);
+        LanStore = null;
+        LanStoreF = null;
+        LanStoreD = null;
+
+        /* A cut short run keeps only the converged triplets. */
+        R.truncated = budgetExpired;
+        if (budgetExpired && R.d < R.S.length) {
+            if (SVDVerbosity > 0)
+                printf("BUDGET EXPIRED, CONVERGED = %6d\n", R.d);
+            truncate(R);
+        }
 
         if (SVDVerbosity > 1) {
             printf("\nSINGULAR VALUES: ");
@@ -923,17 +1383,76 @@ LAS2         ritvec, lanso
         } else if (SVDVerbosity > 0)
             printf("SINGULAR VALUES FOUND     = %6d\n", R.d);
 
+        if (null != rowOrder && null == sink) {
+            if (!symmetric) Reordering.restore(R.Ut, rowOrder);
+            Reordering.restore(R.Vt, colOrder);
+        }
+
         /* This swaps and transposes the singular matrices if A was transposed. */
-        if (transpose) {
+        if (transpose && null == sink) {
             DMat swap = R.Ut;
             R.Ut = R.Vt;
             R.Vt = swap;
         }
 
+        if ((floatLanStore || null != doubleMatrix) && !within_tolerance(R, 
+                null != doubleMatrix ? A0.floatError : 0.0)) {
+            if (SVDVerbosity > 0)
+                printf("SINGLE PRECISION OUT OF TOLERANCE, REPEATING IN DOUBLE\n");
+            boolean floatLanStore0 = floatLanStore;
+            SMat doubleMatrix0 = doubleMatrix;
+            floatLanStore = false;
+            doubleMatrix = null;
+            try {
+                R = svdLAS2(null != doubleMatrix0 ? doubleMatrix0 : A0, 
+                        dimensions0, iterations0, end, kappa0);
+            } finally {
+                floatLanStore = floatLanStore0;
+                doubleMatrix = doubleMatrix0;
+            }
+            floatRejected = true;
+        }
         return R;
     }
 
 
+    DoubleBuffer directDoubles(int n) {
+        if (null != directMemory) return directMemory.allocateDoubles(n);
+        return ByteBuffer.allocateDirect(8 * n).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    /* Whether the residual bound of each triplet of R, plus the rounding 
+     * error of a single precision matrix, is within floatTolerance of its
+     * singular value. */
+    boolean within_tolerance(SVDRec R, double matrixError) {
+        for (int x = 0; x < R.d; x++)
+            if (R.bounds[x] + matrixError > floatTolerance * R.S[x]) return false;
+        return true;
+    }
+
+    /* Drops the rows of R beyond R.d. */
+    static void truncate(SVDRec R) {
+        R.S = Arrays.copyOf(R.S, R.d);
+        R.bounds = Arrays.copyOf(R.bounds, R.d);
+        if (null == R.Vt) return;
+        double[][] vt = new double[R.d][];
+        System.arraycopy(R.Vt.value, 0, vt, 0, R.d);
+        if (R.Ut != R.Vt) {
+            double[][] ut = new double[R.d][];
+            System.arraycopy(R.Ut.value, 0, ut, 0, R.d);
+            R.Ut.value = ut;
+            R.Ut.rows = R.d;
+        }
+        R.Vt.value = vt;
+        R.Vt.rows = R.d;
+    }
+
+    /* Whether the time budget has run out or the run was cancelled. */
+    boolean budget_expired() {
+        if (deadline > 0 && System.currentTimeMillis() >= deadline) return true;
+        return cancellation != null && cancellation.isCancelled();
+    }
+
     static void svdWriteDenseArray(double[] s, int d, String string, boolean b) {
         System.out.println("Declare victory!"); // TODO better print
     }
@@ -993,27 +1512,17 @@ imtql2
 
      ***********************************************************************/
 
-    static void rotateArray(double[][] a, int size, int x) {
-
-        // TODO fix me, in Java we cannot access a[] as a[][] !!!
-
-        int i, j, n, start;
-        double t1, t2;
-        if (x == 0) return;
-        j = start = 0;
-        t1 = a[0][0];
+    /* Rotates the rows of a so that row x becomes the first one. The C
+     * version rotated the contiguous storage by x*cols elements; in Java
+     * the rows are separate arrays, so their references are rotated. */
+    static void rotateArray(double[][] a, int x) {
         int len = a.length;
-        for (i = 0; i < size; i++) {
-            n = (j >= x) ? j - x : j + size - x;
-            t2 = a[n % len][n / len];
-            a[n % len][n / len] = t1;
-            t1 = t2;
-            j = n;
-            if (j == start) {
-                start = ++j;
-                t1 = a[j % len][j / len];
-            }
+        if (len == 0 || x % len == 0) return;
+        double[][] rotated = new double[len][];
+        for (int i = 0; i < len; i++) {
+            rotated[i] = a[(i + x) % len];
         }
+        System.arraycopy(rotated, 0, a, 0, len);
     }
 
     long ritvec(int n, SMat A, SVDRec R, double kappa, double[] ritz, double[] bnd, 
@@ -1022,7 +1531,8 @@ imtql2
         double[] s;
         double[] xv2;
         double tmp0, tmp1, xnorm;
-        double[] w1 = R.Vt.value[0];
+        double[] w1 = null != sink ? new double[svd_imax(n, steps + 1)] : R.Vt.value[0];
+        int[] accepted = null != sink ? new int[steps + 1] : null;
 
         js = steps + 1;
         jsq = js * js;
@@ -1052,7 +1562,9 @@ fwrite((char *)&kappa, sizeof(kappa), 1, fp_out2);*/
         id2 = jsq - js;
         for (k = 0; k < js; k++) {
             tmp = id2;
-            if (bnd[k] <= kappa * Math.abs(ritz[k]) && k > js-neig-1) {
+            if (bnd[k] <= kappa * Math.abs(ritz[k]) && k > js-neig-1 && null != sink) {
+                accepted[nsig++] = k;
+            } else if (bnd[k] <= kappa * Math.abs(ritz[k]) && k > js-neig-1) {
                 if (--x < 0) x = R.d - 1;
                 w1 = R.Vt.value[x];
                 for (i = 0; i < n; i++) w1[i] = 0.0;
@@ -1079,12 +1591,15 @@ singular values. */
             }
             id2++;
         }
+        if (null != sink) {
+            stream_vectors(n, A, R, s, js, accepted, nsig, w2, xv2);
+            return nsig;
+        }
         s = null;
 
         /* Rotate the singular vectors and values. */
         /* x is now the location of the highest singular value. */
-        rotateArray(R.Vt.value, R.Vt.rows * R.Vt.cols, 
-                x * R.Vt.cols);
+        rotateArray(R.Vt.value, x);
         R.d = svd_imin(R.d, nsig);
         for (x = 0; x < R.d; x++) {
             /* multiply by matrix B first */
@@ -1095,11 +1610,13 @@ singular values. */
             xnorm = Math.sqrt(svd_ddot(n, xv2, 1, xv2, 1));
 
             /* multiply by matrix A to get (scaled) left s-vector */
-            svd_opa(A, R.Vt.value[x], R.Ut.value[x]);
             tmp1 = 1.0 / tmp0;
-            svd_dscal(A.rows, tmp1, R.Ut.value[x], 1);
+            if (!symmetric) {
+                svd_opa(A, R.Vt.value[x], R.Ut.value[x]);
+                svd_dscal(A.rows, tmp1, R.Ut.value[x], 1);
+            }
             xnorm *= tmp1;
-            bnd[i] = xnorm;
+            R.bounds[x] = xnorm;
             R.S[x] = tmp0;
         }
 
@@ -1107,6 +1624,52 @@ singular values. */
         return nsig;
     }
 
+    /* The second half of ritvec with a sink: forms the Ritz vectors of the
+     * accepted eigenvalues of T, largest first, one at a time from the
+     * Lanczos vectors, and hands each triplet to the sink in the original
+     * order of A. */
+    void stream_vectors(int n, SMat A, SVDRec R, double[] s, int js, int[] accepted, 
+            int nsig, double[] w2, double[] xv2) {
+        double[] v = new double[n];
+        double[] u = symmetric ? v : new double[A.rows];
+        double[] work = new double[svd_imax(n, A.rows)];
+        double tmp0, tmp1, xnorm;
+        R.d = svd_imin(R.d, nsig);
+        for (int x = 0; x < R.d; x++) {
+            int tmp = js * js - js + accepted[nsig - 1 - x];
+            for (int i = 0; i < n; i++) v[i] = 0.0;
+            for (int i = 0; i < js; i++) {
+                store(n, storeVals.RETRQ, i, w2);
+                svd_daxpy(n, s[tmp], w2, 1, v, 1);
+                tmp -= js;
+            }
+
+            svd_opb(A, v, xv2, OPBTemp);
+            tmp0 = svd_ddot(n, v, 1, xv2, 1);
+            svd_daxpy(n, -tmp0, v, 1, xv2, 1);
+            tmp0 = Math.sqrt(tmp0);
+            xnorm = Math.sqrt(svd_ddot(n, xv2, 1, xv2, 1));
+            tmp1 = 1.0 / tmp0;
+            if (!symmetric) {
+                svd_opa(A, v, u);
+                svd_dscal(A.rows, tmp1, u, 1);
+            }
+            R.bounds[x] = xnorm * tmp1;
+            R.S[x] = tmp0;
+
+            if (null != sinkRowOrder) {
+                if (!symmetric) Reordering.restore(u, sinkRowOrder, work);
+                Reordering.restore(v, sinkColOrder, work);
+            }
+            try {
+                if (sinkTranspose) sink.accept(x, tmp0, v, u);
+                else sink.accept(x, tmp0, u, v);
+            } catch (IOException e) {
+                throw new Error("svdLAS2: the sink failed", e);
+            }
+        }
+    }
+
     /***********************************************************************
      *                                                                     *
      *                          lanso()                                    *
@@ -1174,19 +1737,36 @@ UTILITY	svd_imin, svd_imax
         bet = wptr[9];
         wrk = wptr[5];
 
-        /* take the first step */
-        double[] ref_rnm = new double[] { 0d }; // XXX wrap
-        double[] ref_tol = new double[] { 0d }; // XXX wrap
-        stpone(A, wptr, ref_rnm, ref_tol, n);
-        double tol = ref_tol[0]; // XXX unwrap
-        double rnm = ref_rnm[0]; // XXX unwrap
-
-        if (/* !rnm */ 0 == rnm || 0 != ierr) return 0;
-        eta[0] = eps1;
-        oldeta[0] = eps1;
-        ll = 0;
-        first = 1;
-        last = svd_imin(dimensions + svd_imax(8, dimensions), iterations);
+        double tol, rnm;
+        int resumed = 0;
+        if (null != checkpoint && resuming) 
+            resumed = checkpoint.restore(LanStore, wptr, alf, eta, oldeta, bet);
+        if (resumed > 0) {
+            /* continue at the top of the checkpointed step */
+            tol = checkpoint.tol;
+            rnm = checkpoint.rnm;
+            ll = checkpoint.ll;
+            intro = checkpoint.intro;
+            first = resumed;
+            last = svd_imin(checkpoint.last, iterations);
+        } else {
+            /* take the first step */
+            double[] ref_rnm = new double[] { 0d }; // XXX wrap
+            double[] ref_tol = new double[] { 0d }; // XXX wrap
+            stpone(A, wptr, ref_rnm, ref_tol, n);
+            tol = ref_tol[0]; // XXX unwrap
+            rnm = ref_rnm[0]; // XXX unwrap
+
+            if (/* !rnm */ 0 == rnm || 0 != ierr) return 0;
+            eta[0] = eps1;
+            oldeta[0] = eps1;
+            ll = 0;
+            first = 1;
+            last = svd_imin(dimensions + svd_imax(8, dimensions), iterations);
+            /* the adaptive rank is checked early and in growing chunks of steps */
+            if (targetEnergy > 0 || targetGap > 0) last = svd_imin(17, iterations);
+            if (null != checkpoint) checkpoint.create();
+        }
         ENOUGH = false;
         /*id1 = 0;*/
         while (/*id1 < dimensions && */!ENOUGH) {
@@ -1197,6 +1777,10 @@ UTILITY	svd_imin, svd_imax
             boolean[] ref_ENOUGH = new boolean[] { ENOUGH }; // XXX wrap
             double[] ref2_rnm = new double[] { rnm }; // XXX wrap
             double[] ref2_tol = new double[] { tol }; // XXX wrap
+            if (null != checkpoint) {
+                checkpoint.last = last;
+                checkpoint.intro = intro;
+            }
             j = lanczos_step(A, first, last, wptr, alf, eta, oldeta, bet, ref_ll,
                     ref_ENOUGH, ref2_rnm, ref2_tol, n);
             ll = ref_ll[0]; // XXX unwrap
@@ -1204,7 +1788,7 @@ UTILITY	svd_imin, svd_imax
             tol = ref2_tol[0]; // XXX unwrap
             rnm = ref2_rnm[0]; // XXX unwrap
 
-            if (ENOUGH) j = j - 1;
+            if (ENOUGH || budgetExpired) j = j - 1;
             else j = last - 1;
             first = j + 1;
             bet[j+1] = rnm;
@@ -1248,7 +1832,24 @@ printf("\n"); */
             neigp[0] = neig;
 
             /* should we stop? */
-            if (neig < dimensions) {
+            if (budgetExpired) {
+                ENOUGH = true;
+            } else if (targetConverged > 0 
+                    && converged_top(ritz, bnd, j) >= targetConverged) {
+                adaptiveDimensions = targetConverged;
+                ENOUGH = true;
+            } else if (targetEnergy > 0 || targetGap > 0) {
+                adaptiveDimensions = adaptive_rank(ritz, bnd, j);
+                if (adaptiveDimensions > 0) ENOUGH = true;
+                else if (neig >= dimensions) {
+                    /* the target is not reached within the requested 
+                     * dimensions, which cap the adaptive rank; stop where
+                     * the fixed rank run would */
+                    adaptiveDimensions = dimensions;
+                    ENOUGH = true;
+                }
+                else last = svd_imin(first + svd_imax(16, first / 2), iterations);
+            } else if (neig < dimensions) {
                 if (/* !neig */ 0 == neig) {
                     last = first + 9;
                     intro = first;
@@ -1256,15 +1857,64 @@ printf("\n"); */
                         neig);
                 last = svd_imin(last, iterations);
             } else ENOUGH = true;
+            if (!ENOUGH && stepLimited && first >= iterations) budgetExpired = true;
             ENOUGH = ENOUGH || first >= iterations;
             /* id1++; */
             /* printf("id1=%d dimen=%d first=%d\n", id1, dimensions, first); */
         }
         store(n, storeVals.STORQ, j, wptr[1]);
+        if (null != checkpoint) checkpoint.close();
         return j;
     }
 
 
+    /***********************************************************************
+     *                                                                     *
+     *                        adaptive_rank()                              *
+     *                                                                     *
+     ***********************************************************************/
+    /***********************************************************************
+
+Description
+-----------
+
+Function walks the Ritz values from the largest one down while they are
+converged according to their error bounds, and returns the number of
+them needed to reach targetEnergy of trace(A'A), or to reach a ratio of
+targetGap between consecutive singular values. Returns 0 if neither is
+reached by the converged Ritz values.
+
+Arguments 
+---------
+
+(input)
+ritz     array of ritz values in increasing order
+bnd      array of error bounds
+step     index of the last ritz value
+
+     ***********************************************************************/
+
+    int adaptive_rank(double[] ritz, double[] bnd, int step) {
+        double energy = 0.0;
+        for (int i = step; i >= 0; i--) {
+            if (bnd[i] > 16.0 * eps * fabs(ritz[i])) return 0;
+            energy += ritz[i];
+            if (targetEnergy > 0 && energy >= targetEnergy * traceB) return step - i + 1;
+            if (targetGap > 0 && i > 0 && ritz[i-1] > 0
+                    && bnd[i-1] <= 16.0 * eps * fabs(ritz[i-1])
+                    && Math.sqrt(ritz[i] / ritz[i-1]) >= targetGap) return step - i + 1;
+        }
+        return 0;
+    }
+
+    /* Number of largest ritz values, counted from the top, whose error
+     * bounds are within the acceptance tolerance of ritvec. */
+    int converged_top(double[] ritz, double[] bnd, int step) {
+        int i = step;
+        while (i >= 0 && bnd[i] <= acceptKappa * fabs(ritz[i])) i--;
+        return step - i;
+    }
+
     /***********************************************************************
      *                                                                     *
      *			lanczos_step()                                 *
@@ -1315,6 +1965,18 @@ UTILITY	svd_imin, svd_imax
         int i, j;
 
         for (j=first; j<last; j++) {
+            /* the budget is checked before the step changes any state */
+            if (j > first && budget_expired()) {
+                budgetExpired = true;
+                break;
+            }
+            if (null != checkpoint && j > first && j % checkpointInterval == 0) {
+                checkpoint.step = j;
+                checkpoint.ll = ll[0];
+                checkpoint.rnm = rnm;
+                checkpoint.tol = tol;
+                checkpoint.append(LanStore, wptr, alf, eta, oldeta, bet);
+            }
             mid     = wptr[2];
             wptr[2] = wptr[1];
             wptr[1] = mid;
@@ -1662,7 +2324,8 @@ MISC		random
         r = wptr[0];
         for (id = 0; id < 3; id++) {
             if (id > 0 || step > 0 || rnm2 == 0) 
-                for (i = 0; i < n; i++) r[i] = random.nextDouble(); // svd_random2(&irand);
+                for (i = 0; i < n; i++) 
+                    r[null == startPosition ? i : startPosition[i]] = random.nextDouble(); // svd_random2(&irand);
             svd_dcopy(n, wptr[0], 1, wptr[3], 1);
 
             /* apply operator to put r in range (essential if m singular) */
@@ -2253,12 +2916,38 @@ BLAS		svd_dcopy
         /* printf("called store %ld %ld\n", isw, j); */
         switch(isw) {
         case STORQ:
+            if (null != LanStoreD) {
+                if (null == LanStoreD[j + MAXLL]) LanStoreD[j + MAXLL] = directDoubles(n);
+                LanStoreD[j + MAXLL].clear();
+                LanStoreD[j + MAXLL].put(s, 0, n);
+                break;
+            }
+            if (null != LanStoreF) {
+                if (null == LanStoreF[j + MAXLL]) LanStoreF[j + MAXLL] = new float[n];
+                float[] f = LanStoreF[j + MAXLL];
+                for (int i = 0; i < n; i++) f[i] = (float) s[i];
+                break;
+            }
             if (null == LanStore[j + MAXLL]) {
                 LanStore[j + MAXLL] = svd_doubleArray(n, false, "LanStore[j]");
             }
             svd_dcopy(n, s, 1, LanStore[j + MAXLL], 1);
             break;
         case RETRQ:	
+            if (null != LanStoreD) {
+                if (null == LanStoreD[j + MAXLL]) throw new Error(String.format(
+                        "svdLAS2: store (RETRQ) called on index %d (not allocated)", j + MAXLL));
+                LanStoreD[j + MAXLL].clear();
+                LanStoreD[j + MAXLL].get(s, 0, n);
+                break;
+            }
+            if (null != LanStoreF) {
+                float[] f = LanStoreF[j + MAXLL];
+                if (null == f) throw new Error(String.format(
+                        "svdLAS2: store (RETRQ) called on index %d (not allocated)", j + MAXLL));
+                for (int i = 0; i < n; i++) s[i] = f[i];
+                break;
+            }
             if (null == LanStore[j + MAXLL]) throw new Error(String.format(
                     "svdLAS2: store (RETRQ) called on index %d (not allocated)", j + MAXLL));
             svd_dcopy(n, LanStore[j + MAXLL], 1, s, 1);
@@ -2267,6 +2956,18 @@ BLAS		svd_dcopy
             if (j >= MAXLL) {
                 throw new Error("svdLAS2: store (STORP) called with j >= MAXLL");
             }
+            if (null != LanStoreD) {
+                if (null == LanStoreD[j]) LanStoreD[j] = directDoubles(n);
+                LanStoreD[j].clear();
+                LanStoreD[j].put(s, 0, n);
+                break;
+            }
+            if (null != LanStoreF) {
+                if (null == LanStoreF[j]) LanStoreF[j] = new float[n];
+                float[] f = LanStoreF[j];
+                for (int i = 0; i < n; i++) f[i] = (float) s[i];
+                break;
+            }
             if (null == LanStore[j]) {
                 LanStore[j] = svd_doubleArray(n, false, "LanStore[j]");
             }
@@ -2277,6 +2978,20 @@ BLAS		svd_dcopy
                 svd_error("svdLAS2: store (RETRP) called with j >= MAXLL");
                 break;
             }
+            if (null != LanStoreD) {
+                if (null == LanStoreD[j]) throw new Error(String.format(
+                        "svdLAS2: store (RETRP) called on index %d (not allocated)", j));
+                LanStoreD[j].clear();
+                LanStoreD[j].get(s, 0, n);
+                break;
+            }
+            if (null != LanStoreF) {
+                float[] f = LanStoreF[j];
+                if (null == f) throw new Error(String.format(
+                        "svdLAS2: store (RETRP) called on index %d (not allocated)", j));
+                for (int i = 0; i < n; i++) s[i] = f[i];
+                break;
+            }
             if (null == LanStore[j]) throw new Error(String.format(
                     "svdLAS2: store (RETRP) called on index %d (not allocated)", j));
             svd_dcopy(n, LanStore[j], 1, s, 1);
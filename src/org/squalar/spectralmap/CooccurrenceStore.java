@@ -0,0 +1,154 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.spectralmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+import org.squalar.util.LongDoubleHashMap;
+import org.squalar.util.SortedRun;
+import org.squalar.util.SparseMatrixReader;
+import org.squalar.util.SparseVector;
+import org.squalar.util.VectorNode;
+
+/**
+ * Persistent co-occurrence matrix that grows with batches of documents.
+ * Only the co-occurrences of a new batch are calculated, and they are
+ * merged into the stored matrix as a sorted run, so the stored matrix
+ * is never loaded into memory during an update. Entries are keyed by the
+ * term indices of the libsvm files as they are.
+ */
+public class CooccurrenceStore {
+
+	/** The sorted run holding the co-occurrence matrix. */
+	private File file;
+
+	/**
+	 * The main method. Adds each batch to the store in turn.
+	 *
+	 * @param args[0] the co-occurrence store file name
+	 * @param args[1] the libsvm-formatted term-document matrix file name of 
+	 *        a batch; further batches may follow
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			throw (new IllegalArgumentException("There were " + args.length + " arguments, instead of at least 2."));
+		}
+		CooccurrenceStore store = new CooccurrenceStore(args[0]);
+		for (int i = 1; i < args.length; i++) {
+			Decompose.logger.info("Adding batch " + args[i]);
+			long n = store.addBatch(args[i]);
+			Decompose.logger.info("The store holds " + n + " co-occurrence values");
+		}
+	}
+
+	/**
+	 * Instantiates a store. The file is created with the first batch.
+	 *
+	 * @param filename the store file name
+	 */
+	public CooccurrenceStore(String filename) {
+		this.file = new File(filename);
+	}
+
+	/**
+	 * Adds a batch of documents to the store.
+	 *
+	 * @param tdMatrixFilename the libsvm-formatted term-document matrix file name
+	 * @return the number of non-zero values in the updated store
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public long addBatch(String tdMatrixFilename) throws IOException {
+		LongDoubleHashMap delta = new LongDoubleHashMap();
+		SparseMatrixReader reader = new SparseMatrixReader(tdMatrixFilename);
+		VectorNode[] doc;
+		while ((doc = reader.next()) != null) {
+			SparseVector.accumulateCooccurrence(doc, delta);
+		}
+		reader.close();
+
+		File deltaFile = new File(file.getPath() + ".delta");
+		File mergedFile = new File(file.getPath() + ".tmp");
+		SortedRun.write(delta, deltaFile);
+		delta = null;
+		File[] inputs;
+		if (file.exists()) {
+			inputs = new File[] { file, deltaFile };
+		} else {
+			inputs = new File[] { deltaFile };
+		}
+		long n = SortedRun.merge(inputs, mergedFile);
+		deltaFile.delete();
+		Files.move(mergedFile.toPath(), file.toPath(), 
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return n;
+	}
+
+	/**
+	 * Reads the stored co-occurrence matrix. Rows and columns are 
+	 * zero-indexed in the same way as by {@link SparseVector#transpose}.
+	 *
+	 * @return the sparse co-occurrence matrix
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public VectorNode[][] readSparseMatrix() throws IOException {
+		ArrayList<VectorNode[]> rows = new ArrayList<VectorNode[]>();
+		ArrayList<VectorNode> row = new ArrayList<VectorNode>();
+		SortedRun.Reader reader = new SortedRun.Reader(file);
+		int adjust = -1;
+		int currentRow = -1;
+		while (reader.next()) {
+			int i = LongDoubleHashMap.row(reader.key);
+			if (adjust < 0) {
+				adjust = i > 0 ? 1 : 0;
+			}
+			i -= adjust;
+			if (i != currentRow) {
+				addRow(rows, row, currentRow);
+				currentRow = i;
+			}
+			row.add(new VectorNode(LongDoubleHashMap.col(reader.key) - adjust, reader.value));
+		}
+		reader.close();
+		addRow(rows, row, currentRow);
+		VectorNode[][] result = new VectorNode[rows.size()][];
+		rows.toArray(result);
+		return result;
+	}
+
+	private static void addRow(ArrayList<VectorNode[]> rows, ArrayList<VectorNode> row, int rowIndex) {
+		if (rowIndex < 0) {
+			return;
+		}
+		while (rows.size() < rowIndex) {
+			rows.add(null);
+		}
+		VectorNode[] r = new VectorNode[row.size()];
+		row.toArray(r);
+		rows.add(r);
+		row.clear();
+	}
+
+}
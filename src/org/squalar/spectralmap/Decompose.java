@@ -19,15 +19,26 @@
 
 package org.squalar.spectralmap;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.util.logging.Logger;
 
 import org.squalar.util.DenseVector;
+import org.squalar.util.OffHeapArena;
+import org.squalar.util.OffHeapDenseMatrix;
+import org.squalar.util.SparseMatrixReader;
 import org.squalar.util.SparseVector;
 import org.squalar.util.VectorNode;
 
+import ch.akuhn.edu.mit.tedlab.CompressedSMat;
+import ch.akuhn.edu.mit.tedlab.DirectMemory;
+import ch.akuhn.edu.mit.tedlab.HybridSMat;
+import ch.akuhn.edu.mit.tedlab.LargeSMat;
+import ch.akuhn.edu.mit.tedlab.OffHeapSMat;
 import ch.akuhn.edu.mit.tedlab.SMat;
 import ch.akuhn.edu.mit.tedlab.SVDRec;
+import ch.akuhn.edu.mit.tedlab.SpectralDensity;
 import ch.akuhn.edu.mit.tedlab.Svdlib;
 
 /**
@@ -43,53 +54,925 @@ public class Decompose {
 	/** The number of singular values to calculate in the decomposition */
 	private static int nSingularValues = 1000;
 	
+	/** The fraction of the spectral energy the singular values must capture 
+	 *  to stop the decomposition early, or 0 to calculate nSingularValues. */
+	private static double targetEnergy = 0;
+	
+	/** The ratio of consecutive singular values that stops the decomposition 
+	 *  early, or 0 to calculate nSingularValues. */
+	private static double targetGap = 0;
+	
+	/** The wall clock budget of the decomposition in seconds, or 0 for none. */
+	private static double timeBudget = 0;
+	
+	/** The budget of Lanczos steps of the decomposition, or 0 for none. */
+	private static int stepBudget = 0;
+	
+	/** The number of converged largest singular values that stops the 
+	 *  decomposition early, or 0 to calculate nSingularValues. */
+	private static int targetConverged = 0;
+	
+	/** The checkpoint file of the decomposition, or null for none. */
+	private static String checkpointFilename = null;
+	
+	/** The number of Lanczos steps between checkpoints. */
+	private static int checkpointInterval = 50;
+	
+	/** Whether to resume the decomposition from the checkpoint file. */
+	private static boolean resume = false;
+	
+	/** The reordering of the co-occurrence matrix before the decomposition: 
+	 *  none, rcm or degree. */
+	private static String reordering = "none";
+	
+	/** Whether to store the co-occurrence matrix in single precision for 
+	 *  the decomposition. */
+	private static boolean floatMatrix = false;
+	
+	/** Whether to store the Lanczos vectors in single precision. */
+	private static boolean floatLanczos = false;
+	
+	/** The relative residual above which a decomposition in single precision
+	 *  is rejected and repeated in double precision. */
+	private static double floatTolerance = 1e-5;
+	
+	/** The fraction of non-zeros above which a column of the co-occurrence 
+	 *  matrix is stored densely for the decomposition, or 0 to keep it sparse. */
+	private static double hybridDensity = 0;
+	
+	/** Whether to compress the indices of the co-occurrence matrix for 
+	 *  the decomposition. */
+	private static boolean compressIndices = false;
+	
+	/** Whether to compute only one set of singular vectors of the 
+	 *  symmetric co-occurrence matrix. */
+	private static boolean symmetric = false;
+	
+	/** Whether to write the singular vectors as they are calculated. */
+	private static boolean streamVectors = false;
+	
+	/** The number of threads writing in the background, or 0 to write
+	 *  in sequence. */
+	private static int ioThreads = 2;
+	
+	/** The executor of the background writes, or null. */
+	private static IoExecutor io = null;
+	
+	/** The cache of the intermediate matrices, or null. */
+	private static StageCache cache = null;
+	
+	/** The cache directory, or null for no cache. */
+	private static String cacheDir = null;
+	
+	/** The size of the cache in megabytes. */
+	private static long cacheSize = 4096;
+	
+	/** The memory budget in megabytes for which the algorithms are chosen 
+	 *  before running, -1 for the maximum heap size, or 0 not to plan. */
+	private static long planBudget = 0;
+	
+	/** Whether to keep the large matrices of the pipeline off the heap. */
+	private static boolean offHeap = false;
+	
+	/** The arena of the off-heap matrices, or null. */
+	private static OffHeapArena arena = null;
+	
+	/** The memory budget of the co-occurrence calculation in megabytes. 
+	 *  If positive, the co-occurrence matrix is calculated out of core. */
+	private static long memoryBudget = 0;
+	
+	/** The directory of temporary files. */
+	private static String tmpDir = System.getProperty("java.io.tmpdir");
+	
+	/** The method of calculating the co-occurrence matrix in memory: 
+	 *  "transpose" multiplies the rows of the transposed term-document matrix,
+	 *  "stream" accumulates the term pairs of each document as it is read,
+	 *  "sketch" estimates the largest values in bounded memory. */
+	private static String cooccurrence = "transpose";
+	
+	/** The document sample of the last co-occurrence calculation, or null. */
+	private static DocumentSample sample = null;
+	
+	/** The number of random vectors of the spectral density estimate. */
+	private static int nProbes = 10;
+	
+	/** The number of Lanczos steps from each random vector of the spectral density estimate. */
+	private static int nLanczosSteps = 50;
+	
+	/** The number of bins of the spectral density histogram. */
+	private static int nBins = 50;
+	
+	/** The number of threads of the streaming co-occurrence calculation. */
+	private static int nThreads = Runtime.getRuntime().availableProcessors();
+	
+	/** The width of the count-min sketch of the sketch calculation. */
+	private static int sketchWidth = 1 << 20;
+	
+	/** The depth of the count-min sketch of the sketch calculation. */
+	private static int sketchDepth = 4;
+	
+	/** The number of term pairs kept by the sketch calculation. */
+	private static int heavyHitters = 1 << 20;
+	
+	/** The smallest number of documents a term must occur in to be kept. */
+	private static int minDf = 0;
+	
+	/** The largest fraction of documents a term may occur in to be kept. */
+	private static double maxDf = 1;
+	
+	/** The file name of the mapping of pruned term indices, by default the 
+	 *  co-occurrence file name followed by .map. */
+	private static String termMapFilename = null;
+	
+	/** The probability of keeping a document in a Bernoulli sample, or 1 to keep all. */
+	private static double sampleRate = 1;
+	
+	/** The number of documents kept in a reservoir sample, or 0 to keep all. */
+	private static int sampleSize = 0;
+	
+	/** The random seed of sampling. */
+	private static long seed = 918273L;
+	
+	/** Whether identical documents are collapsed into one with a weight. */
+	private static boolean collapseDuplicates = false;
+	
+	/** The maximum number of co-occurrence values kept for a term, or 0 to keep all. */
+	private static int topK = 0;
+	
+	/** The smallest co-occurrence value kept. */
+	private static double threshold = 0;
+	
+	/** The smallest co-occurrence value kept relative to the geometric mean 
+	 *  of the two terms' own co-occurrence values. */
+	private static double relativeThreshold = 0;
 	
 	/**
-	 * The main method. 
+	 * The main method. If the first argument is "density", the distribution
+	 * of the singular values is estimated instead, see {@link #density(String[])}.
 	 *
 	 * @param args[0] the libsvm-formatted term-document matrix file name
 	 * @param args[1] the co-occurrence file name
 	 * @param args[2] the left singular vectors file name
 	 * @param args[3] the right singular vector file name
 	 * @param args[4] the singular values file name
+	 * @param args[5...] optional switches followed by their values:
+	 *        -energy fraction of the spectral energy or -gap ratio of consecutive
+	 *        singular values to choose the number of singular values adaptively,
+	 *        -converged number of largest singular values to stop at once they converge,
+	 *        -timeBudget seconds or -stepBudget Lanczos steps to bound the decomposition,
+	 *        -checkpoint file name to checkpoint the decomposition every 
+	 *        -checkpointInterval Lanczos steps, -resume file name to continue it,
+	 *        -reorder none, rcm or degree to reorder the matrix for faster products,
+	 *        -hybrid fraction of non-zeros above which a column of the co-occurrence
+	 *        matrix is stored densely for the decomposition,
+	 *        -compress true to compress the indices of the co-occurrence matrix
+	 *        for the decomposition,
+	 *        -symmetric true to compute and write the left singular vectors
+	 *        only, which equal the right ones of the co-occurrence matrix;
+	 *        not with -cooccurrence sketch or sparsification,
+	 *        -stream true to write the singular vectors as they are calculated
+	 *        instead of keeping them in memory,
+	 *        -ioThreads number of threads writing the co-occurrence matrix and
+	 *        the decomposition in the background, 0 to write in sequence,
+	 *        -dimensions number of singular values to calculate,
+	 *        -cache directory to keep the intermediate matrices in for later
+	 *        runs and -cacheSize its size in megabytes,
+	 *        -plan megabytes, or heap for the maximum heap size, to estimate the
+	 *        peak memory of each stage first and choose the algorithms that fit,
+	 *        -offHeap true to keep the dense and sparse co-occurrence matrices and
+	 *        the Lanczos vectors off the heap,
+	 *        -float true to store the matrix and -floatLanczos true to store the
+	 *        Lanczos vectors in single precision, -floatTolerance the relative
+	 *        residual above which either is repeated in double precision,
+	 *        -memoryBudget megabytes to calculate the co-occurrence matrix out of core,
+	 *        -tmpDir directory for temporary files,
+	 *        -cooccurrence transpose, stream or sketch,
+	 *        -threads number of threads of the stream calculation,
+	 *        -sketchWidth, -sketchDepth, -heavyHitters the size of the sketch,
+	 *        -minDf document count and -maxDf document fraction to prune the terms,
+	 *        -termMap file name of the mapping of the pruned terms,
+	 *        -sampleRate probability or -sampleSize number of documents to
+	 *        calculate the co-occurrence matrix from a sample, -seed random seed,
+	 *        -collapseDuplicates true to process identical documents once,
+	 *        -topK, -threshold, -relativeThreshold to keep only the largest 
+	 *        co-occurrence values with the transpose method
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public static void main(String[] args) throws IOException {
-	    if (args.length != 5) {
-	      throw (new IllegalArgumentException("There were " + args.length + " arguments, instead of the expected 5."));
+		if (args.length > 0 && args[0].equals("density")) {
+			density(args);
+			return;
+		}
+	    if (args.length < 5 || (args.length - 5) % 2 != 0) {
+	      throw (new IllegalArgumentException("There were " + args.length + " arguments, instead of the expected 5 and switches with values."));
 	    }
+		parseOptions(args, 5);
 		String tdMatrixFilename=args[0];
 		String cooccurFilename=args[1];
 		String leftSingularVectorsFilename=args[2];
 		String rightSingularVectorsFilename=args[3];
-		String singularValuesFilename=args[4];
-
-		VectorNode[][] mx = SparseVector.transpose(SparseVector.readSparseMatrix(tdMatrixFilename));
-		logger.info("Calculating co-occurrence matrix");
-		mx=SparseVector.matrixMultiplyWithTranspose(mx, mx);
-		DenseVector.writeDenseMatrix(DenseVector.convertFromSparseMatrix(mx), cooccurFilename);
-		SVDRec svdResult=decompose(mx);
-		DenseVector.writeDenseMatrix(svdResult.Ut.value,leftSingularVectorsFilename);
-		DenseVector.writeDenseMatrix(svdResult.Vt.value,rightSingularVectorsFilename);
-		DenseVector.writeDenseMatrix(new double[][]{ svdResult.S} ,singularValuesFilename);
+		final String singularValuesFilename=args[4];
+
+		if (planBudget != 0) {
+			planMemory(tdMatrixFilename);
+		}
+		if (offHeap) {
+			arena = new OffHeapArena();
+		}
+		SingularVectorWriter writer = null;
+		if (streamVectors) {
+			writer = new SingularVectorWriter(leftSingularVectorsFilename, rightSingularVectorsFilename);
+		}
+		if (ioThreads > 0) {
+			io = new IoExecutor(ioThreads);
+		}
+		try {
+			SVDRec svdResult=decompose(calculateCooccurrence(tdMatrixFilename, cooccurFilename), writer);
+			if (io != null) {
+				// a failed write cancels LAS2; its result is not written then
+				io.check();
+			}
+			reportSample(svdResult);
+			if (writer != null) {
+				logger.info("Wrote " + writer.count() + " singular vectors while decomposing"
+						+ (writer.isShared() ? ", the right ones being the left ones" : ""));
+				final double[] singularValues = svdResult.S;
+				write(singularValuesFilename, new IoExecutor.Task() {
+					public void run() throws IOException {
+						DenseVector.writeDenseMatrix(new double[][]{ singularValues } ,singularValuesFilename);
+					}
+				});
+			} else {
+				writeDecomposition(svdResult, leftSingularVectorsFilename,
+						rightSingularVectorsFilename, singularValuesFilename);
+			}
+			if (io != null) {
+				io.await();
+			}
+		} finally {
+			if (io != null) {
+				io.close();
+			}
+			// after the writes, which may read off-heap matrices
+			if (arena != null) {
+				arena.close();
+			}
+			// the only close of the writer, whether or not the run failed
+			if (writer != null) {
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * Estimates the peak memory of each stage from statistics of the 
+	 * term-document matrix and switches to leaner algorithms until every
+	 * stage fits the budget: streaming the singular vectors, keeping the
+	 * large matrices off the heap, writing the dense co-occurrence matrix
+	 * before the decomposition, and calculating the co-occurrences out of 
+	 * core. Switches already given are kept. The off-heap matrices are 
+	 * held to the same budget, as -XX:MaxDirectMemorySize defaults to the
+	 * maximum heap size.
+	 *
+	 * @param tdMatrixFilename the libsvm-formatted term-document matrix file name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void planMemory(String tdMatrixFilename) throws IOException {
+		long budget = planBudget > 0 ? planBudget << 20 : Runtime.getRuntime().maxMemory();
+		logger.info("Planning the memory of the run for a budget of " + (budget >> 20) + " MB");
+		MemoryPlanner planner = new MemoryPlanner(new SparseMatrixReader(tdMatrixFilename));
+		if (sampleSize > 0) {
+			planner.sample((double) sampleSize / planner.documents());
+		} else if (sampleRate < 1) {
+			planner.sample(sampleRate);
+		}
+		logger.info(planner.documents() + " documents, " + planner.terms() + " terms, " 
+				+ planner.nonZeros() + " non-zeros, the longest document " + planner.skew() 
+				+ " times the mean; up to " + planner.cooccurrenceNonZeros() + " co-occurrences");
+		// checkpoints save the Lanczos vectors from the heap, and an OffHeapSMat
+		// holds at most Integer.MAX_VALUE non-zeros; beyond, the matrix is a
+		// LargeSMat on the heap
+		boolean offHeapAllowed = !floatMatrix && hybridDensity == 0 && !compressIndices 
+				&& checkpointFilename == null && planner.cooccurrenceNonZeros() <= Integer.MAX_VALUE;
+		boolean outOfCoreAllowed = topK == 0 && threshold == 0 && relativeThreshold == 0;
+		String[] stages = { "document", "co-occurrence", "conversion", "decomposition", "off-heap" };
+		while (true) {
+			long[] peak = estimateStages(planner);
+			int over = -1;
+			for (int i = 0; i < peak.length && over < 0; i++) {
+				if (peak[i] > budget) {
+					over = i;
+				}
+			}
+			if (over < 0) {
+				for (int i = 0; i < peak.length; i++) {
+					logger.info("Estimated peak of the " + stages[i] + " stage: " + (peak[i] >> 20) + " MB");
+				}
+				return;
+			}
+			if (over <= 1 && memoryBudget == 0 && outOfCoreAllowed) {
+				memoryBudget = Math.max(1, (budget >> 20) / 4);
+				logger.info("Calculating the co-occurrences out of core, -memoryBudget " + memoryBudget);
+			} else if (over == 2 && !offHeap && offHeapAllowed) {
+				offHeap = true;
+				logger.info("Writing the dense co-occurrence matrix off the heap, -offHeap true");
+			} else if (over == 2 && memoryBudget == 0 && outOfCoreAllowed) {
+				memoryBudget = Math.max(1, (budget >> 20) / 4);
+				logger.info("Calculating the co-occurrences out of core, -memoryBudget " + memoryBudget);
+			} else if (over == 3 && !streamVectors && !floatLanczos) {
+				streamVectors = true;
+				logger.info("Writing the singular vectors as they are calculated, -stream true");
+			} else if (over == 3 && !offHeap && offHeapAllowed) {
+				offHeap = true;
+				logger.info("Keeping the matrix and the Lanczos vectors off the heap, -offHeap true");
+			} else if (over == 3 && ioThreads > 0 && memoryBudget == 0) {
+				ioThreads = 0;
+				logger.info("Writing the co-occurrence matrix before the decomposition, -ioThreads 0");
+			} else {
+				throw (new IllegalArgumentException("The estimated peak of the " + stages[over] + " stage, " 
+						+ (peak[over] >> 20) + " MB, exceeds the budget of " + (budget >> 20) + " MB"));
+			}
+		}
+	}
+
+	/**
+	 * Estimates the peak memory of the stages with the current switches;
+	 * the dense co-occurrence matrix is always written.
+	 *
+	 * @param planner the statistics of the term-document matrix
+	 * @return the bytes on the heap while reading the documents, calculating
+	 *         the co-occurrences, converting them, and decomposing them, 
+	 *         followed by the bytes off the heap
+	 */
+	private static long[] estimateStages(MemoryPlanner planner) {
+		int dimensions = (int) Math.min(nSingularValues, planner.terms());
+		long sparse = planner.sparseCooccurrenceBytes();
+		long smat = planner.smatBytes(floatMatrix);
+		long dense = planner.denseCooccurrenceBytes();
+		// duplicates are collapsed while the documents are read
+		long collapse = collapseDuplicates ? planner.collapseBytes() : 0;
+		long[] peak = new long[5];
+		if (memoryBudget > 0) {
+			peak[1] = (memoryBudget << 20) + collapse;
+			peak[2] = smat;
+		} else {
+			if (cooccurrence.equals("stream")) {
+				peak[1] = 2 * sparse + collapse;
+			} else if (cooccurrence.equals("sketch")) {
+				peak[1] = 8L * sketchWidth * sketchDepth + sparse + collapse;
+			} else {
+				peak[0] = planner.documentBytes() + collapse;
+				peak[1] = planner.documentBytes() / 2 + sparse;
+			}
+			peak[2] = sparse + smat + (offHeap ? 0 : dense);
+		}
+		peak[3] = planner.workBytes(dimensions);
+		if (!offHeap) {
+			peak[3] += smat + planner.lanczosBytes(dimensions, floatLanczos);
+		}
+		if (!streamVectors) {
+			peak[3] += planner.outputBytes(dimensions, symmetric);
+		}
+		if (ioThreads > 0 && memoryBudget == 0) {
+			// the dense matrix is written in the background while LAS2 runs
+			peak[3] += sparse + (offHeap ? 0 : dense);
+		}
+		if (offHeap) {
+			peak[4] = dense + planner.smatBytes(false) + planner.lanczosBytes(dimensions, false);
+		}
+		return peak;
+	}
+
+	/**
+	 * Runs a write on the I/O executor, or right away without one.
+	 *
+	 * @param name the name of the write
+	 * @param task the write
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void write(String name, IoExecutor.Task task) throws IOException {
+		if (io != null) {
+			io.submit(name, task);
+		} else {
+			task.run();
+		}
+	}
+
+	/**
+	 * Estimates the distribution of the singular values of the co-occurrence
+	 * matrix without decomposing it, and logs how many singular values 
+	 * capture given fractions of the spectral energy.
+	 *
+	 * @param args[0] density
+	 * @param args[1] the libsvm-formatted term-document matrix file name
+	 * @param args[2] the histogram file name; each line holds the lower and
+	 *        upper end of a bin of singular values and their estimated number
+	 * @param args[3...] the switches of the co-occurrence calculation, and
+	 *        -probes number of random vectors, -lanczosSteps number of steps
+	 *        from each, -bins number of bins of the histogram
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void density(String[] args) throws IOException {
+	    if (args.length < 3 || (args.length - 3) % 2 != 0) {
+	      throw (new IllegalArgumentException("There were " + args.length + " arguments, instead of the expected 3 and switches with values."));
+	    }
+		parseOptions(args, 3);
+		SMat smx = calculateCooccurrence(args[1], null);
+		logger.info("Estimating the spectral density");
+		SpectralDensity density = SpectralDensity.estimate(smx, nProbes, nLanczosSteps, nBins, seed);
+		double[][] histogram = new double[nBins][];
+		for (int i = 0; i < nBins; i++) {
+			histogram[i] = new double[] { density.lower[i], density.upper[i], density.count[i] };
+		}
+		DenseVector.writeDenseMatrix(histogram, args[2]);
+		double[] fractions = { 0.5, 0.9, 0.99 };
+		for (int i = 0; i < fractions.length; i++) {
+			int k = density.dimensionsForEnergy(fractions[i]);
+			logger.info("About " + k + " of " + smx.cols + " singular values capture "
+					+ (100 * fractions[i]) + "% of the spectral energy"
+					+ (k < smx.cols / 2 ? "; LAS2 with -energy " + fractions[i] + " stops there" 
+							: "; a truncated decomposition saves little"));
+		}
+	}
+
+	/**
+	 * Calculates the co-occurrence matrix with the chosen method.
+	 *
+	 * @param tdMatrixFilename the libsvm-formatted term-document matrix file name
+	 * @param cooccurFilename the file name of the dense co-occurrence matrix, 
+	 *        or null not to write it
+	 * @return the co-occurrence matrix
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static SMat calculateCooccurrence(String tdMatrixFilename, final String cooccurFilename)
+			throws IOException {
+		// the keys of the stages: the documents read, their co-occurrences
+		String documentsKey = null;
+		String cooccurrenceKey = null;
+		if (cache != null) {
+			documentsKey = StageCache.key("documents", StageCache.hashFile(tdMatrixFilename),
+					"minDf=" + minDf, "maxDf=" + maxDf, "sampleSize=" + sampleSize, 
+					"sampleRate=" + sampleRate, "seed=" + seed, "collapseDuplicates=" + collapseDuplicates);
+		}
+		VocabularyPruning pruning = null;
+		if (minDf > 1 || maxDf < 1) {
+			String pruningKey = cache != null ? StageCache.key("pruning", documentsKey) : null;
+			pruning = cache != null ? cache.load(pruningKey, StageCache.PRUNING) : null;
+			if (pruning != null) {
+				logger.info("Loaded the pruned terms from the cache");
+			} else {
+				logger.info("Pruning terms by document frequency");
+				pruning = new VocabularyPruning(tdMatrixFilename, minDf, maxDf);
+				if (cache != null) {
+					cache.store(pruningKey, StageCache.PRUNING, pruning);
+				}
+			}
+			if (termMapFilename != null || cooccurFilename != null) {
+				pruning.writeMapping(termMapFilename != null ? termMapFilename : cooccurFilename + ".map");
+			}
+		}
+		sample = null;
+
+		if (memoryBudget > 0) {
+			SparseMatrixReader reader = openDocuments(tdMatrixFilename, pruning);
+			logger.info("Calculating co-occurrence matrix out of core");
+			File run = OutOfCoreCooccurrence.calculate(reader, new File(tmpDir), memoryBudget << 20);
+			reader.close();
+			if (cooccurFilename != null) {
+				OutOfCoreCooccurrence.writeDenseMatrix(run, cooccurFilename);
+			}
+			SMat smx = OutOfCoreCooccurrence.convertToSvdlibj(run, matrixOffHeap());
+			run.delete();
+			return smx;
+		}
+
+		SMat smx = null;
+		if (cache != null) {
+			cooccurrenceKey = StageCache.key("cooccurrence", documentsKey, "method=" + cooccurrence,
+					"sketchWidth=" + sketchWidth, "sketchDepth=" + sketchDepth, "heavyHitters=" + heavyHitters,
+					"topK=" + topK, "threshold=" + threshold, "relativeThreshold=" + relativeThreshold);
+			String smatKey = StageCache.key("smat", cooccurrenceKey);
+			smx = matrixOffHeap() ? cache.load(smatKey, StageCache.OFF_HEAP_SMAT) : cache.load(smatKey, StageCache.SMAT);
+			if (smx != null && cooccurFilename == null) {
+				logger.info("Loaded the converted co-occurrence matrix from the cache");
+				return smx;
+			}
+		}
+		VectorNode[][] mx = cache != null ? cache.load(cooccurrenceKey, StageCache.SPARSE_MATRIX) : null;
+		if (mx != null) {
+			logger.info("Loaded the co-occurrence matrix from the cache");
+		} else if (cooccurrence.equals("stream")) {
+			SparseMatrixReader reader = openDocuments(tdMatrixFilename, pruning);
+			logger.info("Calculating co-occurrence matrix while reading documents");
+			mx = StreamingCooccurrence.calculate(reader, nThreads);
+			reader.close();
+		} else if (cooccurrence.equals("sketch")) {
+			SparseMatrixReader reader = openDocuments(tdMatrixFilename, pruning);
+			logger.info("Estimating co-occurrence matrix with a sketch");
+			mx = SketchCooccurrence.calculate(reader, sketchWidth, sketchDepth, heavyHitters);
+			reader.close();
+		} else {
+			String transposedKey = documentsKey != null ? StageCache.key("transposed", documentsKey) : null;
+			mx = cache != null ? cache.load(transposedKey, StageCache.SPARSE_MATRIX) : null;
+			double[] weights = cache != null && collapseDuplicates ? cache.load(StageCache.key("weights", documentsKey), StageCache.DOUBLES) : null;
+			if (mx != null && (weights != null || !collapseDuplicates)) {
+				logger.info("Loaded the transposed term-document matrix from the cache");
+			} else {
+				SparseMatrixReader reader = openDocuments(tdMatrixFilename, pruning);
+				mx = SparseVector.transpose(SparseVector.readSparseMatrix(reader));
+				reader.close();
+				weights = reader instanceof DuplicateCollapsing ? ((DuplicateCollapsing) reader).weights() : null;
+				store(transposedKey, StageCache.SPARSE_MATRIX, mx);
+				store(StageCache.key("weights", documentsKey), StageCache.DOUBLES, weights);
+			}
+			logger.info("Calculating co-occurrence matrix");
+			if (topK > 0 || threshold > 0 || relativeThreshold > 0) {
+				mx=SparseVector.matrixMultiplyWithTranspose(mx, weights, topK, threshold, relativeThreshold);
+			} else {
+				mx=SparseVector.matrixMultiplyWithTranspose(mx, mx, weights);
+			}
+		}
+		store(cooccurrenceKey, StageCache.SPARSE_MATRIX, mx);
+		if (cooccurFilename != null) {
+			// overlaps with the conversion and LAS2, which only read mx
+			final VectorNode[][] cooccurrences = mx;
+			write(cooccurFilename, new IoExecutor.Task() {
+				public void run() throws IOException {
+					if (arena != null) {
+						OffHeapDenseMatrix.fromSparseMatrix(cooccurrences, arena).write(cooccurFilename);
+					} else {
+						DenseVector.writeDenseMatrix(DenseVector.convertFromSparseMatrix(cooccurrences), cooccurFilename);
+					}
+				}
+			});
+		}
+		if (smx != null) {
+			logger.info("Loaded the converted co-occurrence matrix from the cache");
+			return smx;
+		}
+		logger.info("Converting matrix");
+		smx = convertLibsvmToSvdlibj(mx);
+		store(cooccurrenceKey != null ? StageCache.key("smat", cooccurrenceKey) : null, StageCache.SMAT, smx);
+		return smx;
+	}
+
+	/**
+	 * Opens the documents of the term-document matrix, pruned, sampled and
+	 * collapsed as the switches say.
+	 *
+	 * @param tdMatrixFilename the libsvm-formatted term-document matrix file name
+	 * @param pruning the pruning of the terms, or null
+	 * @return the reader of the documents; a {@link DuplicateCollapsing}
+	 *         holds the weights of the collapsed documents
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static SparseMatrixReader openDocuments(final String tdMatrixFilename, 
+			final VocabularyPruning pruning) throws IOException {
+		if (!collapseDuplicates) {
+			return openSample(tdMatrixFilename, pruning);
+		}
+		logger.info("Collapsing duplicate documents");
+		DuplicateCollapsing collapsing = new DuplicateCollapsing(new DuplicateCollapsing.Source() {
+			public SparseMatrixReader open() throws IOException {
+				return openSample(tdMatrixFilename, pruning);
+			}
+		});
+		logger.info(collapsing.documentCount() + " documents collapsed into " + collapsing.weights().length);
+		return collapsing;
+	}
+
+	/**
+	 * Opens the documents of the term-document matrix, pruned and sampled
+	 * as the switches say. The same seed gives the same sample each time.
+	 *
+	 * @param tdMatrixFilename the libsvm-formatted term-document matrix file name
+	 * @param pruning the pruning of the terms, or null
+	 * @return the reader of the documents
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static SparseMatrixReader openSample(String tdMatrixFilename, VocabularyPruning pruning)
+			throws IOException {
+		SparseMatrixReader reader;
+		if (pruning != null) {
+			reader = pruning.open(tdMatrixFilename);
+		} else {
+			reader = new SparseMatrixReader(tdMatrixFilename);
+		}
+		if (sampleSize > 0) {
+			logger.info("Sampling " + sampleSize + " documents");
+			sample = DocumentSample.reservoir(reader, sampleSize, seed);
+			reader = sample;
+		} else if (sampleRate < 1) {
+			logger.info("Sampling documents with probability " + sampleRate);
+			sample = DocumentSample.bernoulli(reader, sampleRate, seed);
+			reader = sample;
+		}
+		return reader;
+	}
+
+	/**
+	 * Whether the matrix to be decomposed is built off the heap: with
+	 * -offHeap, unless it is stored in single precision on the heap.
+	 *
+	 * @return true if it is built off the heap
+	 */
+	private static boolean matrixOffHeap() {
+		return arena != null && !floatMatrix;
+	}
+
+	/**
+	 * Stores a matrix in the cache in the background, if there is a cache.
+	 *
+	 * @param <T> the type of the matrix
+	 * @param key the key, or null for no cache
+	 * @param codec the codec
+	 * @param value the matrix, or null not to store it
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static <T> void store(final String key, final StageCache.Codec<T> codec, final T value)
+			throws IOException {
+		if (cache == null || key == null || value == null) {
+			return;
+		}
+		write("cache " + key, new IoExecutor.Task() {
+			public void run() {
+				cache.store(key, codec, value);
+			}
+		});
+	}
+
+	/**
+	 * Parses the optional switches.
+	 *
+	 * @param args the command line arguments
+	 * @param first the index of the first switch
+	 */
+	private static void parseOptions(String[] args, int first) {
+		for (int i = first; i < args.length; i += 2) {
+			String name = args[i];
+			String value = args[i + 1];
+			if (name.equals("-energy")) {
+				targetEnergy = Double.parseDouble(value);
+			} else if (name.equals("-gap")) {
+				targetGap = Double.parseDouble(value);
+			} else if (name.equals("-timeBudget")) {
+				timeBudget = Double.parseDouble(value);
+			} else if (name.equals("-stepBudget")) {
+				stepBudget = Integer.parseInt(value);
+			} else if (name.equals("-converged")) {
+				targetConverged = Integer.parseInt(value);
+			} else if (name.equals("-checkpoint")) {
+				checkpointFilename = value;
+			} else if (name.equals("-checkpointInterval")) {
+				checkpointInterval = Integer.parseInt(value);
+			} else if (name.equals("-resume")) {
+				checkpointFilename = value;
+				resume = true;
+			} else if (name.equals("-reorder")) {
+				if (!value.equals("none") && !value.equals("rcm") && !value.equals("degree")) {
+					throw (new IllegalArgumentException("Unknown reordering " + value));
+				}
+				reordering = value;
+			} else if (name.equals("-float")) {
+				floatMatrix = Boolean.parseBoolean(value);
+			} else if (name.equals("-floatLanczos")) {
+				floatLanczos = Boolean.parseBoolean(value);
+			} else if (name.equals("-floatTolerance")) {
+				floatTolerance = Double.parseDouble(value);
+			} else if (name.equals("-hybrid")) {
+				hybridDensity = Double.parseDouble(value);
+			} else if (name.equals("-compress")) {
+				compressIndices = Boolean.parseBoolean(value);
+			} else if (name.equals("-symmetric")) {
+				symmetric = Boolean.parseBoolean(value);
+			} else if (name.equals("-stream")) {
+				streamVectors = Boolean.parseBoolean(value);
+			} else if (name.equals("-ioThreads")) {
+				ioThreads = Integer.parseInt(value);
+			} else if (name.equals("-cache")) {
+				cacheDir = value;
+			} else if (name.equals("-cacheSize")) {
+				cacheSize = Long.parseLong(value);
+			} else if (name.equals("-dimensions")) {
+				nSingularValues = Integer.parseInt(value);
+			} else if (name.equals("-plan")) {
+				planBudget = value.equals("heap") ? -1 : Long.parseLong(value);
+			} else if (name.equals("-offHeap")) {
+				offHeap = Boolean.parseBoolean(value);
+			} else if (name.equals("-memoryBudget")) {
+				memoryBudget = Long.parseLong(value);
+			} else if (name.equals("-tmpDir")) {
+				tmpDir = value;
+			} else if (name.equals("-cooccurrence")) {
+				if (!value.equals("transpose") && !value.equals("stream") && !value.equals("sketch")) {
+					throw (new IllegalArgumentException("Unknown co-occurrence method " + value));
+				}
+				cooccurrence = value;
+			} else if (name.equals("-threads")) {
+				nThreads = Integer.parseInt(value);
+			} else if (name.equals("-sketchWidth")) {
+				sketchWidth = Integer.parseInt(value);
+			} else if (name.equals("-sketchDepth")) {
+				sketchDepth = Integer.parseInt(value);
+			} else if (name.equals("-heavyHitters")) {
+				heavyHitters = Integer.parseInt(value);
+			} else if (name.equals("-minDf")) {
+				minDf = Integer.parseInt(value);
+			} else if (name.equals("-maxDf")) {
+				maxDf = Double.parseDouble(value);
+			} else if (name.equals("-termMap")) {
+				termMapFilename = value;
+			} else if (name.equals("-sampleRate")) {
+				sampleRate = Double.parseDouble(value);
+			} else if (name.equals("-sampleSize")) {
+				sampleSize = Integer.parseInt(value);
+			} else if (name.equals("-seed")) {
+				seed = Long.parseLong(value);
+			} else if (name.equals("-collapseDuplicates")) {
+				collapseDuplicates = Boolean.parseBoolean(value);
+			} else if (name.equals("-probes")) {
+				nProbes = Integer.parseInt(value);
+			} else if (name.equals("-lanczosSteps")) {
+				nLanczosSteps = Integer.parseInt(value);
+			} else if (name.equals("-bins")) {
+				nBins = Integer.parseInt(value);
+			} else if (name.equals("-topK")) {
+				topK = Integer.parseInt(value);
+			} else if (name.equals("-threshold")) {
+				threshold = Double.parseDouble(value);
+			} else if (name.equals("-relativeThreshold")) {
+				relativeThreshold = Double.parseDouble(value);
+			} else {
+				throw (new IllegalArgumentException("Unknown switch " + name));
+			}
+		}
+		if ((topK > 0 || threshold > 0 || relativeThreshold > 0)
+				&& (memoryBudget > 0 || !cooccurrence.equals("transpose"))) {
+			throw (new IllegalArgumentException("Sparsification is only available with the transpose method"));
+		}
+		if (hybridDensity > 0 && (floatMatrix || offHeap)) {
+			throw (new IllegalArgumentException("The hybrid matrix is only available in double precision on the heap"));
+		}
+		if (cacheDir != null) {
+			cache = new StageCache(new File(cacheDir), cacheSize << 20);
+		}
+		if (streamVectors && floatLanczos) {
+			throw (new IllegalArgumentException("Single precision Lanczos vectors may be rejected, they cannot be streamed"));
+		}
+		if (compressIndices && (floatMatrix || offHeap || hybridDensity > 0)) {
+			throw (new IllegalArgumentException("Compressed indices are only available in double precision on the heap, without -hybrid"));
+		}
+		if (symmetric && (topK > 0 || threshold > 0 || relativeThreshold > 0 || cooccurrence.equals("sketch"))) {
+			throw (new IllegalArgumentException("The co-occurrence matrix is only symmetric with the transpose or stream method, without sparsification"));
+		}
+	}
+
+	/**
+	 * Logs how far the singular values calculated from a sample may be 
+	 * from the ones of the full corpus.
+	 *
+	 * @param svdResult the decomposition
+	 */
+	private static void reportSample(SVDRec svdResult) {
+		if (sample == null || svdResult.S.length == 0) {
+			return;
+		}
+		double bound = sample.deviationBound();
+		logger.info("Sampled " + sample.sampledCount() + " of " + sample.documentCount() 
+				+ " documents; the singular values "
+				+ "deviate from the ones of the full corpus by up to about " + bound
+				+ " (" + (100 * bound / svdResult.S[0]) + "% of the leading one)");
+	}
+
+	/**
+	 * Writes the singular vectors and values.
+	 *
+	 * @param svdResult the decomposition
+	 * @param leftSingularVectorsFilename the left singular vectors file name
+	 * @param rightSingularVectorsFilename the right singular vectors file name
+	 * @param singularValuesFilename the singular values file name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void writeDecomposition(final SVDRec svdResult, final String leftSingularVectorsFilename,
+			final String rightSingularVectorsFilename, final String singularValuesFilename) throws IOException {
+		write(leftSingularVectorsFilename, new IoExecutor.Task() {
+			public void run() throws IOException {
+				DenseVector.writeDenseMatrix(svdResult.Ut.value,leftSingularVectorsFilename);
+			}
+		});
+		if (svdResult.Ut == svdResult.Vt) {
+			logger.info("The right singular vectors are the left ones, " 
+					+ rightSingularVectorsFilename + " is not written");
+		} else {
+			write(rightSingularVectorsFilename, new IoExecutor.Task() {
+				public void run() throws IOException {
+					DenseVector.writeDenseMatrix(svdResult.Vt.value,rightSingularVectorsFilename);
+				}
+			});
+		}
+		write(singularValuesFilename, new IoExecutor.Task() {
+			public void run() throws IOException {
+				DenseVector.writeDenseMatrix(new double[][]{ svdResult.S} ,singularValuesFilename);
+			}
+		});
 	}
 
 	/**
 	 * Decompose.
 	 *
-	 * @param mx the rectangular matrix to be decomposed 
+	 * @param smx the rectangular matrix to be decomposed 
+	 * @param sink the sink of the singular vectors as they are calculated,
+	 *        or null to return them in the decomposition
 	 * @return the SVD decompositon of the matrix
 	 */
-	private static SVDRec decompose(VectorNode[][] mx) {
-		logger.info("Converting matrix");
-		SMat smx=convertLibsvmToSvdlibj(mx);
+	private static SVDRec decompose(SMat smx, SingularVectorWriter sink) {
 		logger.info("Starting SVD using algorithm LAS2");
 		Svdlib svd = new Svdlib();
-		return svd.svdLAS2A(smx, nSingularValues);
+		svd.targetEnergy = targetEnergy;
+		svd.targetGap = targetGap;
+		svd.targetConverged = targetConverged;
+		svd.timeBudget = (long) (1000 * timeBudget);
+		svd.stepBudget = stepBudget;
+		svd.floatLanStore = floatLanczos;
+		svd.floatTolerance = floatTolerance;
+		if (floatMatrix) {
+			SMat single = smx.toFloat();
+			if (single.floatError == 0) {
+				smx = single;
+			} else if (sink != null) {
+				logger.warning("The values are not exact in single precision and the vectors "
+						+ "are streamed, so the matrix stays in double precision");
+			} else {
+				logger.info("The values are not exact in single precision, keeping the double "
+						+ "precision matrix in case the accuracy is out of tolerance");
+				svd.doubleMatrix = smx;
+				smx = single;
+			}
+		} else if (smx instanceof OffHeapSMat) {
+			arena.register((OffHeapSMat) smx);
+		} else if (arena != null && !(smx instanceof LargeSMat)) {
+			OffHeapSMat offHeapMatrix = OffHeapSMat.copyOf(smx);
+			arena.register(offHeapMatrix);
+			smx = offHeapMatrix;
+		} else if (hybridDensity > 0 && !(smx instanceof LargeSMat)) {
+			HybridSMat hybridMatrix = HybridSMat.copyOf(smx, hybridDensity);
+			logger.info(hybridMatrix.headSize() + " of " + hybridMatrix.cols + " columns are stored densely");
+			smx = hybridMatrix;
+		} else if (compressIndices && !(smx instanceof LargeSMat)) {
+			CompressedSMat compressedMatrix = CompressedSMat.copyOf(smx);
+			logger.info("Compressed the indices from " + (4L * (smx.vals + smx.pointr.length)) 
+					+ " to " + compressedMatrix.indexBytes() + " bytes");
+			smx = compressedMatrix;
+		}
+		svd.offHeapLanStore = arena != null;
+		if (arena != null) {
+			svd.directMemory = new DirectMemory() {
+				public DoubleBuffer allocateDoubles(int n) {
+					return arena.allocateDoubles(n);
+				}
+			};
+		}
+		svd.sink = sink;
+		svd.cancellation = io;
+		if (symmetric && smx.rows != smx.cols) {
+			logger.warning("The co-occurrence matrix is not square, its last terms "
+					+ "co-occur with none; computing both singular vectors");
+		} else {
+			svd.symmetric = symmetric;
+		}
+		if (reordering.equals("rcm")) {
+			svd.reordering = Svdlib.REORDER_RCM;
+		} else if (reordering.equals("degree")) {
+			svd.reordering = Svdlib.REORDER_DEGREE;
+		}
+		if (checkpointFilename != null) {
+			svd.checkpointFile = new File(checkpointFilename);
+			svd.checkpointInterval = checkpointInterval;
+		}
+		SVDRec result;
+		if (resume) {
+			logger.info("Resuming from checkpoint " + checkpointFilename);
+			result = svd.resumeLAS2A(smx, nSingularValues);
+		} else {
+			result = svd.svdLAS2A(smx, nSingularValues);
+		}
+		if (svd.floatRejected) {
+			logger.info("Single precision was out of tolerance, repeated in double precision");
+		}
+		if (result.truncated && io != null && io.isCancelled()) {
+			logger.info("Cancelled after a failed write");
+		} else if (result.truncated) {
+			logger.info("Budget expired, returning the " + result.d + " converged singular values");
+		} else if (svd.adaptiveDimensions > 0) {
+			logger.info("Stopped early with " + result.d + " singular values");
+		}
+		return result;
 	}
 
 	/**
-	 * Converts a libsvm sparse matrix to a svdlibj sparse one
+	 * Converts a libsvm sparse matrix to a svdlibj sparse one. Beyond
+	 * Integer.MAX_VALUE non-zero values, the result is a LargeSMat, and
+	 * otherwise an OffHeapSMat if there is an arena.
 	 *
 	 * @param mx the libsvm sparse matrix
 	 * @return the svdlibj matrix
@@ -97,23 +980,48 @@ public class Decompose {
 	private static SMat convertLibsvmToSvdlibj(VectorNode[][] mx) {
 		SMat S;
 		int i, j, n;
+		long nonZeros = 0;
 		int maxColIndex = 0;
-		// n = number of non-zero elements
-		for (i = 0, n = 0; i < mx.length; i++) {
+		// the number of non-zero elements
+		for (i = 0; i < mx.length; i++) {
+			// terms that none of the sampled documents contain have no row
+			if (mx[i] == null) {
+				continue;
+			}
 			for (j = 0; j < mx[i].length; j++) {
-				n++;
+				nonZeros++;
 				if (mx[i][j].index > maxColIndex) {
 					maxColIndex = mx[i][j].index;
 				}
 			}
 		}
-		S = new SMat(mx.length, maxColIndex, n);
+		if (nonZeros > Integer.MAX_VALUE) {
+			// the rows of mx are the columns of its transpose
+			LargeSMat T = new LargeSMat(maxColIndex + 1, mx.length, nonZeros);
+			long p = 0;
+			for (i = 0; i < mx.length; i++) {
+				T.pointr64[i] = p;
+				for (j = 0; mx[i] != null && j < mx[i].length; j++) {
+					T.set(p++, mx[i][j].index, mx[i][j].value);
+				}
+			}
+			T.pointr64[mx.length] = p;
+			return T.transposeView();
+		}
+		n = (int) nonZeros;
+		// filled directly, so the matrix is never held on the heap as well
+		OffHeapSMat offHeapMatrix = matrixOffHeap() ? new OffHeapSMat(mx.length, maxColIndex+1, n) : null;
+		S = offHeapMatrix != null ? offHeapMatrix : new SMat(mx.length, maxColIndex+1, n);
 		for (j = 0, n = 0; j < maxColIndex+1; j++) {
 			VectorNode[] column = SparseVector.columnVector(mx, j);
 			S.pointr[j] = n;
 			for (i = 0; i < column.length; i++) {
-				S.rowind[n] = column[i].index;
-				S.value[n] = column[i].value;
+				if (offHeapMatrix != null) {
+					offHeapMatrix.set(n, column[i].index, column[i].value);
+				} else {
+					S.rowind[n] = column[i].index;
+					S.value[n] = column[i].value;
+				}
 				n++;
 			}
 		}
@@ -0,0 +1,188 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.spectralmap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.squalar.util.SparseMatrixReader;
+import org.squalar.util.VectorNode;
+
+/**
+ * Reads a random sample of the documents of a term-document matrix in a
+ * single pass, either by keeping each document with a fixed probability
+ * (Bernoulli sampling) or by keeping a fixed number of documents 
+ * (reservoir sampling). The values of the sampled documents are scaled by
+ * the square root of the inverse sampling rate, so that the co-occurrence
+ * matrix of the sample is an unbiased estimate of the full one.
+ */
+public class DocumentSample extends SparseMatrixReader {
+
+	/** The reader of all documents. */
+	private SparseMatrixReader source;
+
+	private Random random;
+
+	/** The probability of keeping a document, for Bernoulli sampling. */
+	private double rate;
+
+	/** The sampled documents, for reservoir sampling; null otherwise. */
+	private ArrayList<VectorNode[]> reservoir;
+
+	/** The position of the next reservoir document to be returned. */
+	private int position = 0;
+
+	/** The number of documents seen. */
+	private long nDocs = 0;
+
+	/** The number of sampled documents returned. */
+	private long nSampled = 0;
+
+	/** The sum of the fourth power of the norms of the sampled documents. */
+	private double sumNorm4 = 0;
+
+	/**
+	 * Instantiates a Bernoulli sample.
+	 *
+	 * @param source the reader of all documents
+	 * @param rate the probability of keeping a document
+	 * @param seed the random seed
+	 * @return the sample
+	 */
+	public static DocumentSample bernoulli(SparseMatrixReader source, double rate, long seed) {
+		if (rate <= 0 || rate > 1) {
+			throw (new IllegalArgumentException("The sampling rate must be in (0,1], not " + rate));
+		}
+		DocumentSample result = new DocumentSample(source, seed);
+		result.rate = rate;
+		return result;
+	}
+
+	/**
+	 * Instantiates a reservoir sample. The source is read completely 
+	 * when the sample is created.
+	 *
+	 * @param source the reader of all documents
+	 * @param size the number of documents to keep
+	 * @param seed the random seed
+	 * @return the sample
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static DocumentSample reservoir(SparseMatrixReader source, int size, long seed)
+			throws IOException {
+		DocumentSample result = new DocumentSample(source, seed);
+		result.reservoir = new ArrayList<VectorNode[]>(size);
+		VectorNode[] doc;
+		while ((doc = source.next()) != null) {
+			result.nDocs++;
+			if (result.reservoir.size() < size) {
+				result.reservoir.add(doc);
+			} else {
+				long k = (long) (result.random.nextDouble() * result.nDocs);
+				if (k < size) {
+					result.reservoir.set((int) k, doc);
+				}
+			}
+		}
+		result.rate = result.nDocs == 0 ? 1 : Math.min(1.0, (double) size / result.nDocs);
+		return result;
+	}
+
+	private DocumentSample(SparseMatrixReader source, long seed) {
+		this.source = source;
+		this.random = new Random(seed);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.squalar.util.SparseMatrixReader#next()
+	 */
+	public VectorNode[] next() throws IOException {
+		VectorNode[] doc = null;
+		if (reservoir != null) {
+			if (position < reservoir.size()) {
+				doc = reservoir.get(position);
+				reservoir.set(position++, null);
+			}
+		} else {
+			while ((doc = source.next()) != null) {
+				nDocs++;
+				if (random.nextDouble() < rate) {
+					break;
+				}
+			}
+		}
+		if (doc == null) {
+			return null;
+		}
+		nSampled++;
+		double norm2 = 0;
+		double scale = Math.sqrt(1 / rate);
+		VectorNode[] result = new VectorNode[doc.length];
+		for (int i = 0; i < doc.length; i++) {
+			norm2 += doc[i].value * doc[i].value;
+			result[i] = new VectorNode(doc[i].index, doc[i].value * scale);
+		}
+		sumNorm4 += norm2 * norm2;
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.squalar.util.SparseMatrixReader#close()
+	 */
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/**
+	 * The number of documents seen so far in the source.
+	 *
+	 * @return the number of documents
+	 */
+	public long documentCount() {
+		return nDocs;
+	}
+
+	/**
+	 * The number of sampled documents returned so far.
+	 *
+	 * @return the number of documents
+	 */
+	public long sampledCount() {
+		return nSampled;
+	}
+
+	/**
+	 * Estimates the root mean square deviation of the co-occurrence matrix
+	 * of the sample from the full one in Frobenius norm. By Weyl's 
+	 * inequality this also bounds how far each singular value of the 
+	 * sample's co-occurrence matrix may be from the true one. A document d 
+	 * kept with probability p contributes (1-p)/p |d|^4 to the expected 
+	 * squared error, which is estimated without bias from the sample. It 
+	 * is only meaningful after the sample has been read completely.
+	 *
+	 * @return the estimated deviation
+	 */
+	public double deviationBound() {
+		return Math.sqrt((1 - rate) / (rate * rate) * sumNorm4);
+	}
+
+}
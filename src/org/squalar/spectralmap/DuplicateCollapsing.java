@@ -0,0 +1,286 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.spectralmap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.squalar.util.LongDoubleHashMap;
+import org.squalar.util.SparseMatrixReader;
+import org.squalar.util.VectorNode;
+
+/**
+ * Collapses identical documents into one with a multiplicity weight. The
+ * source is read three times. The first pass groups the documents under 
+ * a 63-bit fingerprint of their index and value arrays and counts each
+ * group. The second pass compares every document of a group of several
+ * with the ones of the group kept so far, so that only identical 
+ * documents are collapsed and a fingerprint collision makes a document 
+ * of its own, and sums the weights. The third pass returns the first 
+ * occurrence of each document with its summed weight, in the order of 
+ * the first occurrences, and the documents split off by a collision last.
+ * Besides the documents of a group while its second pass lasts, only the
+ * fingerprints, counts and weights are held in memory, about 44 bytes
+ * per distinct document.
+ */
+public class DuplicateCollapsing extends SparseMatrixReader {
+
+	/**
+	 * Opens the documents to be collapsed, the same ones in the same 
+	 * order each time.
+	 */
+	public interface Source {
+
+		/**
+		 * Opens the documents.
+		 *
+		 * @return the reader of the documents
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		SparseMatrixReader open() throws IOException;
+	}
+
+	/** The position of each group plus one, by fingerprint. */
+	private LongDoubleHashMap positions = new LongDoubleHashMap();
+
+	/** The number of groups, the distinct fingerprints. */
+	private int groups = 0;
+
+	/** The position of each document split off a group plus one, by its number in the source. */
+	private LongDoubleHashMap splits = new LongDoubleHashMap();
+
+	/** The first occurrences of the documents split off their groups, by position. */
+	private ArrayList<VectorNode[]> splitDocs = new ArrayList<VectorNode[]>();
+
+	/** The number of occurrences of each distinct document. */
+	private double[] weights = new double[1024];
+
+	/** The bits of the fingerprints that are kept. */
+	private final long fingerprintMask;
+
+	/** The reader of the third pass. */
+	private SparseMatrixReader source;
+
+	/** The number of documents read in the third pass. */
+	private long read = 0;
+
+	/** The number of distinct documents returned. */
+	private int position = 0;
+
+	/** The number of documents read from the source. */
+	private long nDocs = 0;
+
+	/**
+	 * Reads the documents twice to find the identical ones and sum their
+	 * weights.
+	 *
+	 * @param documents the source of all documents, which is opened three times
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public DuplicateCollapsing(Source documents) throws IOException {
+		this(documents, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reads the documents twice with fingerprints cut to some bits, which
+	 * makes collisions as frequent as wanted to check their handling.
+	 *
+	 * @param documents the source of all documents, which is opened three times
+	 * @param fingerprintMask the bits of the fingerprints that are kept
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	DuplicateCollapsing(Source documents, long fingerprintMask) throws IOException {
+		this.fingerprintMask = fingerprintMask;
+		int[] counts = new int[1024];
+		SparseMatrixReader reader = documents.open();
+		VectorNode[] doc;
+		while ((doc = reader.next()) != null) {
+			nDocs++;
+			long key = fingerprint(doc);
+			int i = (int) positions.get(key) - 1;
+			if (i < 0) {
+				i = groups++;
+				positions.add(key, groups);
+				if (i == counts.length) {
+					counts = Arrays.copyOf(counts, 2 * counts.length);
+				}
+			}
+			counts[i]++;
+		}
+		reader.close();
+
+		// the documents kept so far of each group of several, the first
+		// one being the group's own
+		HashMap<Integer, ArrayList<VectorNode[]>> kept = new HashMap<Integer, ArrayList<VectorNode[]>>();
+		HashMap<Integer, int[]> keptPositions = new HashMap<Integer, int[]>();
+		weights = new double[groups];
+		int distinct = groups;
+		reader = documents.open();
+		for (long k = 0; (doc = reader.next()) != null; k++) {
+			int i = (int) positions.get(fingerprint(doc)) - 1;
+			int p = i;
+			// counts holds the documents of the group still to be read
+			ArrayList<VectorNode[]> docs = kept.get(i);
+			if (docs != null || counts[i] > 1) {
+				if (docs == null) {
+					docs = new ArrayList<VectorNode[]>();
+					kept.put(i, docs);
+					keptPositions.put(i, new int[] { i });
+					docs.add(doc);
+				} else {
+					int[] ps = keptPositions.get(i);
+					int j = 0;
+					while (j < docs.size() && !identical(docs.get(j), doc)) {
+						j++;
+					}
+					if (j == docs.size()) {
+						// a collision: a document of its own
+						docs.add(doc);
+						ps = Arrays.copyOf(ps, j + 1);
+						ps[j] = distinct++;
+						keptPositions.put(i, ps);
+						splitDocs.add(doc);
+						if (ps[j] == weights.length) {
+							weights = Arrays.copyOf(weights, 2 * weights.length);
+						}
+					}
+					p = ps[j];
+					if (p >= groups) {
+						splits.add(k, p + 1);
+					}
+				}
+				if (--counts[i] == 0) {
+					kept.remove(i);
+					keptPositions.remove(i);
+				}
+			}
+			weights[p] += reader.weight();
+		}
+		reader.close();
+		weights = Arrays.copyOf(weights, distinct);
+		source = documents.open();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.squalar.util.SparseMatrixReader#next()
+	 */
+	public VectorNode[] next() throws IOException {
+		VectorNode[] doc;
+		while ((doc = source.next()) != null) {
+			// the documents split off are returned last, from memory
+			if (splits.get(read++) > 0) {
+				continue;
+			}
+			// first occurrences come in the order of their positions
+			if ((int) positions.get(fingerprint(doc)) - 1 == position) {
+				position++;
+				return doc;
+			}
+		}
+		if (position < weights.length) {
+			return splitDocs.get(position++ - groups);
+		}
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.squalar.util.SparseMatrixReader#weight()
+	 */
+	public double weight() {
+		return weights[position - 1];
+	}
+
+	/* (non-Javadoc)
+	 * @see org.squalar.util.SparseMatrixReader#close()
+	 */
+	public void close() throws IOException {
+		source.close();
+		positions = null;
+		splits = null;
+		splitDocs = null;
+	}
+
+	/**
+	 * The weights of the distinct documents in the order they are returned.
+	 *
+	 * @return the weights
+	 */
+	public double[] weights() {
+		return weights;
+	}
+
+	/**
+	 * The number of documents read from the source.
+	 *
+	 * @return the number of documents
+	 */
+	public long documentCount() {
+		return nDocs;
+	}
+
+	/**
+	 * Whether two documents have the same indices and values, to the bit
+	 * as the fingerprint sees them.
+	 *
+	 * @param a a document
+	 * @param b another document
+	 * @return true if they are identical
+	 */
+	private static boolean identical(VectorNode[] a, VectorNode[] b) {
+		if (a.length != b.length) {
+			return false;
+		}
+		for (int i = 0; i < a.length; i++) {
+			if (a[i].index != b[i].index 
+					|| Double.doubleToLongBits(a[i].value) != Double.doubleToLongBits(b[i].value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A fingerprint of a document's indices and values, non-negative so
+	 * that it can key a {@link LongDoubleHashMap}.
+	 *
+	 * @param doc the document
+	 * @return the fingerprint
+	 */
+	private long fingerprint(VectorNode[] doc) {
+		long h = doc.length;
+		for (int i = 0; i < doc.length; i++) {
+			h = mix(h ^ doc[i].index);
+			h = mix(h ^ Double.doubleToLongBits(doc[i].value));
+		}
+		return h & fingerprintMask;
+	}
+
+	private static long mix(long h) {
+		h *= 0x9e3779b97f4a7c15L;
+		h ^= h >>> 32;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 29;
+		return h;
+	}
+
+}
@@ -0,0 +1,178 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.squalar.spectralmap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ch.akuhn.edu.mit.tedlab.Cancellation;
+
+/**
+ * Runs the writes of the pipeline on background threads, so that they 
+ * overlap with the calculation. As many writes as there are threads may 
+ * wait in the queue; a further one is run by the submitting thread, which
+ * slows the producer down to the pace of the disk and bounds the matrices 
+ * kept alive by pending writes. The first failure stops the pipeline: no
+ * further write is started, a LAS2 run polling {@link #isCancelled()} 
+ * stops at its next Lanczos step, and {@link #check()} and {@link #await()}
+ * rethrow it.
+ */
+public class IoExecutor implements Cancellation, Closeable {
+
+	/**
+	 * A write.
+	 */
+	public interface Task {
+
+		/**
+		 * Writes.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		void run() throws IOException;
+	}
+
+	/** The executor. */
+	private ThreadPoolExecutor executor;
+
+	/** The submitted writes. */
+	private ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+
+	/** The first failure, or null. */
+	private volatile Throwable failure = null;
+
+	/** The name of the write that failed first. */
+	private volatile String failedTask = null;
+
+	/**
+	 * Instantiates a new I/O executor.
+	 *
+	 * @param nThreads the number of writer threads
+	 */
+	public IoExecutor(int nThreads) {
+		executor = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(nThreads), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Decompose I/O");
+						// a pending write must not keep a failed run alive
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Submits a write, or runs it in the calling thread if the queue is full.
+	 * Nothing is started after a failure.
+	 *
+	 * @param name the name of the write, for the failure message
+	 * @param task the write
+	 */
+	public void submit(final String name, final Task task) {
+		if (failure != null) {
+			return;
+		}
+		pending.add(executor.submit(new Runnable() {
+			public void run() {
+				if (failure != null) {
+					return;
+				}
+				try {
+					task.run();
+				} catch (Throwable e) {
+					fail(name, e);
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Records the first failure.
+	 *
+	 * @param name the name of the write
+	 * @param e the failure
+	 */
+	private synchronized void fail(String name, Throwable e) {
+		if (failure == null) {
+			failedTask = name;
+			failure = e;
+			Decompose.logger.severe("Writing " + name + " failed, stopping: " + e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.akuhn.edu.mit.tedlab.Cancellation#isCancelled()
+	 */
+	public boolean isCancelled() {
+		return failure != null;
+	}
+
+	/**
+	 * Rethrows the first failure, if any.
+	 *
+	 * @throws IOException Signals that a write has failed.
+	 */
+	public void check() throws IOException {
+		Throwable e = failure;
+		if (e == null) {
+			return;
+		}
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		throw new IOException("Writing " + failedTask + " failed", e);
+	}
+
+	/**
+	 * Waits for the submitted writes and rethrows the first failure.
+	 *
+	 * @throws IOException Signals that a write has failed.
+	 */
+	public void await() throws IOException {
+		try {
+			for (Future<?> write : pending) {
+				write.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while waiting for the writes", e);
+		} catch (ExecutionException e) {
+			// the tasks catch their failures, this is not expected
+			throw new IOException("A write failed", e.getCause());
+		}
+		pending.clear();
+		check();
+	}
+
+	/**
+	 * Stops the writer threads; writes still running after a failure are
+	 * interrupted.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+}
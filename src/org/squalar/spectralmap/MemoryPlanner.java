@@ -0,0 +1,233 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.squalar.spectralmap;
+
+import java.io.IOException;
+
+import org.squalar.util.SparseMatrixReader;
+import org.squalar.util.VectorNode;
+
+/**
+ * Estimates the memory of the stages of Decompose before running them,
+ * from statistics of the term-document matrix gathered in one pass: the 
+ * number of documents, terms and non-zeros, and the skew of the document
+ * lengths. A document of length l adds up to l^2 co-occurrences, so the 
+ * sum of the squared lengths, capped by the square of the number of 
+ * terms, bounds the non-zeros of the co-occurrence matrix; a few long 
+ * documents dominate it. The figures are estimates for choosing the
+ * algorithms, with the object sizes of a 64-bit JVM with compressed 
+ * references; pruned terms are not subtracted. The co-occurrences are 
+ * bounded from above, but the number of Lanczos steps is not known 
+ * before LAS2 converges: it may run up to the order of the matrix, so
+ * the estimates of the decomposition may be exceeded.
+ */
+public class MemoryPlanner {
+
+	/** The bytes of a VectorNode and the reference to it. */
+	static final int bytesPerNode = 32;
+
+	/** The number of documents. */
+	private long documents = 0;
+
+	/** The number of terms, the largest column index plus one. */
+	private long terms = 0;
+
+	/** The number of non-zeros. */
+	private long nonZeros = 0;
+
+	/** The length of the longest document. */
+	private long maxLength = 0;
+
+	/** The sum of the squared document lengths. */
+	private double sumSquaredLength = 0;
+
+	/** The fraction of the documents that is read, when sampling. */
+	private double fraction = 1;
+
+	/**
+	 * Gathers the statistics of a term-document matrix and closes the reader.
+	 *
+	 * @param reader the reader of the term-document matrix
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public MemoryPlanner(SparseMatrixReader reader) throws IOException {
+		VectorNode[] doc;
+		while ((doc = reader.next()) != null) {
+			documents++;
+			nonZeros += doc.length;
+			maxLength = Math.max(maxLength, doc.length);
+			sumSquaredLength += (double) doc.length * doc.length;
+			for (int j = 0; j < doc.length; j++) {
+				terms = Math.max(terms, doc[j].index + 1L);
+			}
+		}
+		reader.close();
+	}
+
+	/**
+	 * Scales the estimates to a sample of the documents.
+	 *
+	 * @param fraction the fraction of the documents sampled
+	 */
+	public void sample(double fraction) {
+		this.fraction = Math.min(1, fraction);
+	}
+
+	/**
+	 * The number of documents.
+	 *
+	 * @return the number of documents
+	 */
+	public long documents() {
+		return documents;
+	}
+
+	/**
+	 * The number of terms, the order of the co-occurrence matrix.
+	 *
+	 * @return the number of terms
+	 */
+	public long terms() {
+		return terms;
+	}
+
+	/**
+	 * The number of non-zeros of the term-document matrix.
+	 *
+	 * @return the number of non-zeros
+	 */
+	public long nonZeros() {
+		return nonZeros;
+	}
+
+	/**
+	 * The skew of the document lengths, the longest one over the mean.
+	 *
+	 * @return the skew
+	 */
+	public double skew() {
+		return documents == 0 ? 0 : maxLength * (double) documents / nonZeros;
+	}
+
+	/**
+	 * The estimated number of non-zeros of the co-occurrence matrix.
+	 *
+	 * @return the number of non-zeros
+	 */
+	public long cooccurrenceNonZeros() {
+		return (long) Math.min((double) terms * terms, fraction * sumSquaredLength);
+	}
+
+	/**
+	 * The bytes of the documents read into memory and their transpose.
+	 *
+	 * @return the bytes
+	 */
+	public long documentBytes() {
+		return (long) (2 * fraction * nonZeros * bytesPerNode);
+	}
+
+	/**
+	 * The bytes of the hash that collapses duplicate documents: about 44 
+	 * bytes per distinct document, at most per document read. A repeated
+	 * document is also held while its repetitions are compared with it,
+	 * which is not counted.
+	 *
+	 * @return the bytes
+	 */
+	public long collapseBytes() {
+		return (long) (44 * fraction * documents);
+	}
+
+	/**
+	 * The bytes of the co-occurrence matrix as sparse rows.
+	 *
+	 * @return the bytes
+	 */
+	public long sparseCooccurrenceBytes() {
+		return cooccurrenceNonZeros() * bytesPerNode + 8 * terms;
+	}
+
+	/**
+	 * The bytes of the dense co-occurrence matrix written to its file.
+	 *
+	 * @return the bytes
+	 */
+	public long denseCooccurrenceBytes() {
+		return 8 * terms * terms;
+	}
+
+	/**
+	 * The bytes of the co-occurrence matrix as an SMat.
+	 *
+	 * @param floatValues whether the values are in single precision
+	 * @return the bytes
+	 */
+	public long smatBytes(boolean floatValues) {
+		return cooccurrenceNonZeros() * (floatValues ? 8 : 12) + 4 * terms;
+	}
+
+	/**
+	 * The estimated number of Lanczos steps, three per singular value as 
+	 * usual for LAS2, at most the order of the matrix. This is a heuristic,
+	 * not a bound: svdLAS2A allows as many steps as the order of the matrix.
+	 *
+	 * @param dimensions the number of singular values
+	 * @return the number of steps
+	 */
+	public long lanczosSteps(int dimensions) {
+		return Math.min(terms, 3L * dimensions);
+	}
+
+	/**
+	 * The bytes of the Lanczos vectors, LanStore.
+	 *
+	 * @param dimensions the number of singular values
+	 * @param floatVectors whether the vectors are in single precision
+	 * @return the bytes
+	 */
+	public long lanczosBytes(int dimensions, boolean floatVectors) {
+		return (floatVectors ? 4 : 8) * terms * (lanczosSteps(dimensions) + 2);
+	}
+
+	/**
+	 * The bytes of the work space of svdLAS2: the eigenvectors of the 
+	 * tridiagonal matrix in ritvec and the vectors of the Lanczos steps.
+	 *
+	 * @param dimensions the number of singular values
+	 * @return the bytes
+	 */
+	public long workBytes(int dimensions) {
+		long steps = lanczosSteps(dimensions) + 1;
+		return 8 * steps * steps + 12 * 8 * terms;
+	}
+
+	/**
+	 * The bytes of the singular vectors returned, Ut and Vt.
+	 *
+	 * @param dimensions the number of singular values
+	 * @param symmetric whether Ut is Vt
+	 * @return the bytes
+	 */
+	public long outputBytes(int dimensions, boolean symmetric) {
+		return (symmetric ? 1 : 2) * 8 * terms * Math.min(terms, dimensions);
+	}
+
+}
@@ -0,0 +1,264 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.spectralmap;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.squalar.util.LongDoubleHashMap;
+import org.squalar.util.SortedRun;
+import org.squalar.util.SparseMatrixReader;
+import org.squalar.util.VectorNode;
+
+import ch.akuhn.edu.mit.tedlab.LargeSMat;
+import ch.akuhn.edu.mit.tedlab.OffHeapSMat;
+import ch.akuhn.edu.mit.tedlab.SMat;
+
+/**
+ * External-memory calculation of the co-occurrence matrix. Documents are
+ * streamed, their co-occurrences are accumulated until the memory budget
+ * is exhausted, and the partial counts are spilled to sorted runs on disk.
+ * The runs are then merged into the final co-occurrence matrix.
+ */
+public class OutOfCoreCooccurrence {
+
+	/** The maximum number of runs merged at once. */
+	private static final int maxFanIn = 64;
+
+	/** The bytes used per accumulator slot, including the spill arrays. */
+	private static final int bytesPerSlot = 24;
+
+	/**
+	 * Calculates the co-occurrence matrix of a term-document matrix.
+	 *
+	 * @param reader the reader of the term-document matrix
+	 * @param workDir the directory of the spill files
+	 * @param memoryBudget the memory available for accumulating co-occurrences in bytes
+	 * @return the sorted run of the co-occurrence matrix, a temporary file in workDir
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static File calculate(SparseMatrixReader reader, File workDir,
+			long memoryBudget) throws IOException {
+		int capacity = 16;
+		while (capacity < (1 << 30) && 2L * capacity * bytesPerSlot <= memoryBudget) {
+			capacity <<= 1;
+		}
+		LongDoubleHashMap acc = new LongDoubleHashMap(capacity / 2);
+		ArrayList<File> spills = new ArrayList<File>();
+		VectorNode[] doc;
+		while ((doc = reader.next()) != null) {
+			double weight = reader.weight();
+			// the budget is checked for each pair, so a long document cannot
+			// grow the accumulator past it
+			for (int i = 0; i < doc.length; i++) {
+				for (int j = 0; j < doc.length; j++) {
+					acc.add(LongDoubleHashMap.key(doc[i].index, doc[j].index),
+							doc[i].value * doc[j].value * weight);
+					if (acc.size() >= capacity / 2) {
+						spills.add(spill(acc, workDir));
+					}
+				}
+			}
+		}
+		if (acc.size() > 0 || spills.isEmpty()) {
+			spills.add(spill(acc, workDir));
+		}
+		acc = null;
+		Decompose.logger.info("Merging " + spills.size() + " spill files");
+		while (spills.size() > 1) {
+			ArrayList<File> merged = new ArrayList<File>();
+			for (int i = 0; i < spills.size(); i += maxFanIn) {
+				File[] inputs = spills.subList(i, Math.min(i + maxFanIn, spills.size()))
+						.toArray(new File[0]);
+				File output = createTempFile(workDir);
+				SortedRun.merge(inputs, output);
+				for (File input : inputs) {
+					input.delete();
+				}
+				merged.add(output);
+			}
+			spills = merged;
+		}
+		return spills.get(0);
+	}
+
+	private static File spill(LongDoubleHashMap acc, File workDir) throws IOException {
+		File file = createTempFile(workDir);
+		SortedRun.write(acc, file);
+		acc.clear();
+		return file;
+	}
+
+	private static File createTempFile(File workDir) throws IOException {
+		File file = File.createTempFile("cooccur", ".run", workDir);
+		file.deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * Statistics of a co-occurrence run needed to lay it out as a matrix.
+	 */
+	static class Layout {
+		/** 1 if the term indices are one-indexed, 0 otherwise. */
+		int adjust = -1;
+		/** The smallest zero-indexed column index. */
+		int minIndex = Integer.MAX_VALUE;
+		/** The largest zero-indexed row or column index. */
+		int maxIndex = -1;
+		/** The number of non-zero values. */
+		long vals = 0;
+
+		Layout(File run) throws IOException {
+			SortedRun.Reader reader = new SortedRun.Reader(run);
+			while (reader.next()) {
+				if (adjust < 0) {
+					adjust = LongDoubleHashMap.row(reader.key) > 0 ? 1 : 0;
+				}
+				int col = LongDoubleHashMap.col(reader.key) - adjust;
+				minIndex = Math.min(minIndex, col);
+				maxIndex = Math.max(maxIndex, Math.max(col, LongDoubleHashMap.row(reader.key) - adjust));
+				vals++;
+			}
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes the co-occurrence run as a dense matrix, one row at a time,
+	 * in the layout of {@link org.squalar.util.DenseVector#convertFromSparseMatrix}.
+	 *
+	 * @param run the sorted run of the co-occurrence matrix
+	 * @param filename the file name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void writeDenseMatrix(File run, String filename) throws IOException {
+		Layout layout = new Layout(run);
+		int shift = layout.minIndex == 0 ? 1 : 0;
+		double[] row = new double[layout.maxIndex + shift];
+		BufferedWriter out = new BufferedWriter(new FileWriter(new File(filename)));
+		SortedRun.Reader reader = new SortedRun.Reader(run);
+		boolean hasNext = reader.next();
+		for (int i = 0; i <= layout.maxIndex; i++) {
+			Arrays.fill(row, 0);
+			while (hasNext && LongDoubleHashMap.row(reader.key) - layout.adjust == i) {
+				row[LongDoubleHashMap.col(reader.key) - layout.adjust + shift - 1] = reader.value;
+				hasNext = reader.next();
+			}
+			for (int j = 0; j < row.length; j++) {
+				out.write(row[j] + "");
+				if (j != row.length - 1) {
+					out.write(" ");
+				}
+			}
+			out.write("\n");
+		}
+		reader.close();
+		out.close();
+	}
+
+	/**
+	 * Converts the co-occurrence run to a svdlibj sparse matrix. As the
+	 * co-occurrence matrix is symmetric, its rows are the columns of the result.
+	 * Beyond Integer.MAX_VALUE non-zero values, the result is a LargeSMat.
+	 *
+	 * @param run the sorted run of the co-occurrence matrix
+	 * @return the svdlibj matrix
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static SMat convertToSvdlibj(File run) throws IOException {
+		return convertToSvdlibj(run, false);
+	}
+
+	/**
+	 * Converts the co-occurrence run to a svdlibj sparse matrix, which is
+	 * filled off the heap if requested and no larger than an OffHeapSMat holds.
+	 *
+	 * @param run the sorted run of the co-occurrence matrix
+	 * @param offHeap whether to fill an OffHeapSMat
+	 * @return the svdlibj matrix
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static SMat convertToSvdlibj(File run, boolean offHeap) throws IOException {
+		Layout layout = new Layout(run);
+		int n = layout.maxIndex + 1;
+		if (layout.vals > Integer.MAX_VALUE) {
+			return convertToLargeSMat(run, layout);
+		}
+		OffHeapSMat O = offHeap ? new OffHeapSMat(n, n, (int) layout.vals) : null;
+		SMat S = O != null ? O : new SMat(n, n, (int) layout.vals);
+		SortedRun.Reader reader = new SortedRun.Reader(run);
+		int k = 0;
+		int col = 0;
+		while (reader.next()) {
+			int j = LongDoubleHashMap.row(reader.key) - layout.adjust;
+			while (col <= j) {
+				S.pointr[col++] = k;
+			}
+			if (O != null) {
+				O.set(k, LongDoubleHashMap.col(reader.key) - layout.adjust, reader.value);
+			} else {
+				S.rowind[k] = LongDoubleHashMap.col(reader.key) - layout.adjust;
+				S.value[k] = reader.value;
+			}
+			k++;
+		}
+		reader.close();
+		while (col <= n) {
+			S.pointr[col++] = k;
+		}
+		return S;
+	}
+
+	/**
+	 * Converts the co-occurrence run to a svdlibj sparse matrix with 64-bit 
+	 * column pointers and segmented storage.
+	 *
+	 * @param run the sorted run of the co-occurrence matrix
+	 * @param layout the layout of the run
+	 * @return the svdlibj matrix
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static LargeSMat convertToLargeSMat(File run, Layout layout) throws IOException {
+		int n = layout.maxIndex + 1;
+		LargeSMat S = new LargeSMat(n, n, layout.vals);
+		SortedRun.Reader reader = new SortedRun.Reader(run);
+		long k = 0;
+		int col = 0;
+		while (reader.next()) {
+			int j = LongDoubleHashMap.row(reader.key) - layout.adjust;
+			while (col <= j) {
+				S.pointr64[col++] = k;
+			}
+			S.set(k, LongDoubleHashMap.col(reader.key) - layout.adjust, reader.value);
+			k++;
+		}
+		reader.close();
+		while (col <= n) {
+			S.pointr64[col++] = k;
+		}
+		return S;
+	}
+
+}
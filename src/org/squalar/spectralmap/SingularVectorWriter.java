@@ -0,0 +1,129 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.squalar.spectralmap;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import ch.akuhn.edu.mit.tedlab.SingularVectorSink;
+
+/**
+ * Writes the singular vectors as LAS2 finishes them, one line per vector
+ * in the format of {@link org.squalar.util.DenseVector#writeDenseMatrix(double[][], String)}.
+ * Each vector is flushed, so that other tools can read the leading 
+ * vectors while the rest are calculated. The right singular vectors of a 
+ * symmetric decomposition are the left ones and are not written.
+ */
+public class SingularVectorWriter implements SingularVectorSink, Closeable {
+
+	/** The writer of the left singular vectors. */
+	private BufferedWriter left;
+
+	/** The writer of the right singular vectors. */
+	private BufferedWriter right;
+
+	/** The right singular vectors file name. */
+	private String rightFilename;
+
+	/** The number of vectors written. */
+	private int count = 0;
+
+	/** Whether the right singular vectors were the left ones. */
+	private boolean shared = false;
+
+	/**
+	 * Instantiates a new singular vector writer. The right singular 
+	 * vectors file is created with the first right vector.
+	 *
+	 * @param leftFilename the left singular vectors file name
+	 * @param rightFilename the right singular vectors file name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public SingularVectorWriter(String leftFilename, String rightFilename) throws IOException {
+		this.left = new BufferedWriter(new FileWriter(leftFilename));
+		this.rightFilename = rightFilename;
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.akuhn.edu.mit.tedlab.SingularVectorSink#accept(int, double, double[], double[])
+	 */
+	public void accept(int x, double s, double[] u, double[] v) throws IOException {
+		writeVector(left, u);
+		if (u == v) {
+			shared = true;
+		} else {
+			if (right == null) {
+				right = new BufferedWriter(new FileWriter(rightFilename));
+			}
+			writeVector(right, v);
+		}
+		count++;
+	}
+
+	/**
+	 * Writes a vector as a line and flushes it.
+	 *
+	 * @param out the writer
+	 * @param vector the vector
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void writeVector(BufferedWriter out, double[] vector) throws IOException {
+		for (int j = 0; j < vector.length; j++) {
+			out.write(vector[j] + "");
+			if (j != vector.length - 1) {
+				out.write(" ");
+			}
+		}
+		out.write("\n");
+		out.flush();
+	}
+
+	/**
+	 * The number of vectors written.
+	 *
+	 * @return the count
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * Whether the right singular vectors were the left ones, so that 
+	 * only the left ones were written.
+	 *
+	 * @return true, if shared
+	 */
+	public boolean isShared() {
+		return shared;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	public void close() throws IOException {
+		left.close();
+		if (right != null) {
+			right.close();
+		}
+	}
+
+}
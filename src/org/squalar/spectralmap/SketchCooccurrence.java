@@ -0,0 +1,89 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.spectralmap;
+
+import java.io.IOException;
+
+import org.squalar.util.CountMinSketch;
+import org.squalar.util.HeavyHitters;
+import org.squalar.util.LongDoubleHashMap;
+import org.squalar.util.SparseMatrixReader;
+import org.squalar.util.VectorNode;
+
+/**
+ * Approximate co-occurrence matrix in bounded memory for very large 
+ * vocabularies. Term pair values are added to a count-min sketch, and the
+ * pairs with the largest estimates are tracked as heavy hitters. The 
+ * result holds the estimates of the heavy hitters only.
+ */
+public class SketchCooccurrence {
+
+	/**
+	 * Calculates the approximate co-occurrence matrix of a term-document
+	 * matrix with non-negative values. The error bounds are logged.
+	 *
+	 * @param reader the reader of the term-document matrix
+	 * @param width the width of the count-min sketch
+	 * @param depth the depth of the count-min sketch
+	 * @param capacity the maximum number of term pairs in the result, 
+	 *        counting the symmetric pairs once
+	 * @return the sparse co-occurrence matrix, zero-indexed as the product
+	 *         of {@link org.squalar.util.SparseVector#transpose} with itself
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static VectorNode[][] calculate(SparseMatrixReader reader, int width,
+			int depth, int capacity) throws IOException {
+		CountMinSketch sketch = new CountMinSketch(width, depth);
+		HeavyHitters heavyHitters = new HeavyHitters(capacity);
+		VectorNode[] doc;
+		while ((doc = reader.next()) != null) {
+			for (int i = 0; i < doc.length; i++) {
+				if (doc[i].value < 0) {
+					throw (new IllegalArgumentException("The sketch needs non-negative values, found " + doc[i]));
+				}
+				for (int j = i; j < doc.length; j++) {
+					long key = LongDoubleHashMap.key(Math.min(doc[i].index, doc[j].index),
+							Math.max(doc[i].index, doc[j].index));
+					sketch.add(key, doc[i].value * doc[j].value * reader.weight());
+					heavyHitters.offer(key, sketch.estimate(key));
+				}
+			}
+		}
+
+		LongDoubleHashMap estimates = new LongDoubleHashMap(2 * heavyHitters.size());
+		for (int i = 0; i < heavyHitters.size(); i++) {
+			long key = heavyHitters.key(i);
+			double estimate = sketch.estimate(key);
+			int row = LongDoubleHashMap.row(key);
+			int col = LongDoubleHashMap.col(key);
+			estimates.add(key, estimate);
+			if (row != col) {
+				estimates.add(LongDoubleHashMap.key(col, row), estimate);
+			}
+		}
+		Decompose.logger.info("Sketched co-occurrence values exceed the true ones by at most "
+				+ sketch.errorBound() + " with probability " + sketch.confidence());
+		Decompose.logger.info("Term pairs left out of the sketched matrix have estimates of at most "
+				+ heavyHitters.minEstimate());
+		return StreamingCooccurrence.toSparseMatrix(estimates);
+	}
+
+}
@@ -0,0 +1,486 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.squalar.spectralmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.squalar.util.VectorNode;
+
+import ch.akuhn.edu.mit.tedlab.LargeSMat;
+import ch.akuhn.edu.mit.tedlab.OffHeapSMat;
+import ch.akuhn.edu.mit.tedlab.SMat;
+
+/**
+ * A local cache of the intermediate matrices of the pipeline. Each matrix
+ * is stored under a key that hashes the content of the input file and
+ * every parameter of the stages that produced it, so a rerun that only 
+ * changes later stages loads it instead of calculating it again, and a
+ * changed input or parameter simply misses. Entries are written to a 
+ * temporary file and renamed, a loaded entry is touched, and the least 
+ * recently used ones are deleted once the cache exceeds its size. An 
+ * entry that cannot be read or written is skipped with a warning; the 
+ * cache never fails the pipeline.
+ */
+public class StageCache {
+
+	/**
+	 * Writes and reads one kind of matrix.
+	 *
+	 * @param <T> the type of the matrix
+	 */
+	public interface Codec<T> {
+
+		/**
+		 * Writes a matrix.
+		 *
+		 * @param out the output
+		 * @param value the matrix
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		void write(DataOutputStream out, T value) throws IOException;
+
+		/**
+		 * Reads a matrix.
+		 *
+		 * @param in the input
+		 * @return the matrix
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		T read(DataInputStream in) throws IOException;
+	}
+
+	/** The format version, part of every key. */
+	static final int VERSION = 2;
+
+	/** The first and last int of an entry; a torn entry lacks the latter. */
+	static final int MAGIC = 0x53434331;
+
+	/** The suffix of the entries. */
+	static final String SUFFIX = ".bin";
+
+	/** The cache directory. */
+	private File directory;
+
+	/** The size in bytes above which entries are evicted. */
+	private long maxBytes;
+
+	/**
+	 * Instantiates a new stage cache.
+	 *
+	 * @param directory the cache directory, created if missing
+	 * @param maxBytes the size in bytes above which entries are evicted
+	 */
+	public StageCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+	}
+
+	/**
+	 * The key of a stage: the stage name and the SHA-256 of the format 
+	 * version, the stage name and the parts, which are the hashes of the
+	 * inputs and the parameters.
+	 *
+	 * @param stage the stage name
+	 * @param parts the inputs and parameters
+	 * @return the key
+	 */
+	public static String key(String stage, String... parts) {
+		MessageDigest digest = sha256();
+		StringBuilder text = new StringBuilder();
+		text.append(VERSION).append('\n').append(stage);
+		for (String part : parts) {
+			text.append('\n').append(part);
+		}
+		try {
+			digest.update(text.toString().getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return stage + "-" + hex(digest.digest());
+	}
+
+	/**
+	 * The SHA-256 of the content of a file.
+	 *
+	 * @param filename the file name
+	 * @return the hash in hexadecimal
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static String hashFile(String filename) throws IOException {
+		MessageDigest digest = sha256();
+		InputStream in = new FileInputStream(filename);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return hex(digest.digest());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder result = new StringBuilder();
+		for (byte b : bytes) {
+			result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Loads an entry.
+	 *
+	 * @param <T> the type of the matrix
+	 * @param key the key
+	 * @param codec the codec
+	 * @return the matrix, or null if the entry is missing or unreadable
+	 */
+	public <T> T load(String key, Codec<T> codec) {
+		File file = new File(directory, key + SUFFIX);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException("Not a cache entry");
+				}
+				T value = codec.read(in);
+				if (in.readInt() != MAGIC) {
+					throw new IOException("Torn cache entry");
+				}
+				file.setLastModified(System.currentTimeMillis());
+				return value;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Decompose.logger.warning("Dropping unreadable cache entry " + file + ": " + e);
+			file.delete();
+			return null;
+		} catch (RuntimeException e) {
+			// a damaged entry the codec did not recognize
+			Decompose.logger.warning("Dropping unreadable cache entry " + file + ": " + e);
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores an entry and evicts the least recently used entries beyond 
+	 * the size of the cache.
+	 *
+	 * @param <T> the type of the matrix
+	 * @param key the key
+	 * @param codec the codec
+	 * @param value the matrix
+	 */
+	public <T> void store(String key, Codec<T> codec, T value) {
+		File file = new File(directory, key + SUFFIX);
+		File tmp = null;
+		try {
+			// a temporary file of its own, so that concurrent runs storing the
+			// same key do not write into each other's
+			tmp = File.createTempFile(key, ".tmp", directory);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				codec.write(out, value);
+				out.writeInt(MAGIC);
+			} finally {
+				out.close();
+			}
+			// readers see either the old entry or the new one, never none
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, 
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Decompose.logger.warning("Not caching " + key + ": " + e);
+			if (tmp != null) {
+				tmp.delete();
+			}
+			return;
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes the least recently used entries while the cache exceeds 
+	 * its size.
+	 */
+	private synchronized void evict() {
+		File[] entries = directory.listFiles();
+		if (entries == null) {
+			return;
+		}
+		long size = 0;
+		for (File entry : entries) {
+			size += entry.getName().endsWith(SUFFIX) ? entry.length() : 0;
+		}
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+		for (int i = 0; i < entries.length && size > maxBytes; i++) {
+			if (entries[i].getName().endsWith(SUFFIX)) {
+				size -= entries[i].length();
+				Decompose.logger.info("Evicting cache entry " + entries[i].getName());
+				entries[i].delete();
+			}
+		}
+	}
+
+	/** 
+	 * The codec of an SMat held in arrays, or of a LargeSMat or an 
+	 * OffHeapSMat. Beyond Integer.MAX_VALUE non-zero values, a LargeSMat 
+	 * is read.
+	 */
+	public static final Codec<SMat> SMAT = new Codec<SMat>() {
+		public void write(DataOutputStream out, SMat S) throws IOException {
+			if (S instanceof OffHeapSMat) {
+				OFF_HEAP_SMAT.write(out, (OffHeapSMat) S);
+				return;
+			}
+			LargeSMat L = S instanceof LargeSMat ? (LargeSMat) S : null;
+			long nonZeros = L != null ? L.nonZeros : S.vals;
+			out.writeInt(S.rows);
+			out.writeInt(S.cols);
+			out.writeLong(nonZeros);
+			out.writeBoolean(S.byRow);
+			int lines = S.byRow ? S.rows : S.cols;
+			for (int i = 0; i <= lines; i++) {
+				out.writeLong(L != null ? L.pointr64[i] : S.pointr[i]);
+			}
+			for (long i = 0; i < nonZeros; i++) {
+				out.writeInt(L != null ? L.row(i) : S.rowind[(int) i]);
+				out.writeDouble(L != null ? L.value(i) : S.value[(int) i]);
+			}
+		}
+
+		public SMat read(DataInputStream in) throws IOException {
+			int rows = in.readInt();
+			int cols = in.readInt();
+			long nonZeros = in.readLong();
+			boolean byRow = in.readBoolean();
+			checkNonZeros(nonZeros);
+			if (nonZeros > Integer.MAX_VALUE) {
+				return readLarge(in, rows, cols, nonZeros, byRow);
+			}
+			SMat S = new SMat(rows, cols, (int) nonZeros);
+			S.byRow = byRow;
+			if (S.byRow) {
+				S.pointr = new int[rows + 1];
+			}
+			for (int i = 0; i < S.pointr.length; i++) {
+				S.pointr[i] = (int) in.readLong();
+			}
+			for (int i = 0; i < S.vals; i++) {
+				S.rowind[i] = in.readInt();
+				S.value[i] = in.readDouble();
+			}
+			return S;
+		}
+	};
+
+	/**
+	 * Rejects a number of non-zeros that no matrix holds, from a damaged entry.
+	 *
+	 * @param nonZeros the number of non-zeros read
+	 * @throws IOException if it is negative
+	 */
+	private static void checkNonZeros(long nonZeros) throws IOException {
+		if (nonZeros < 0) {
+			throw new IOException("A negative number of non-zeros, " + nonZeros);
+		}
+	}
+
+	/**
+	 * Reads the pointers and entries of a LargeSMat; one by row is read as
+	 * the transpose view of one by column.
+	 *
+	 * @param in the stream after the header
+	 * @param rows the number of rows
+	 * @param cols the number of columns
+	 * @param nonZeros the number of non-zeros
+	 * @param byRow whether the matrix is stored by row
+	 * @return the matrix
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static SMat readLarge(DataInputStream in, int rows, int cols, long nonZeros, boolean byRow) 
+			throws IOException {
+		LargeSMat L = byRow ? new LargeSMat(cols, rows, nonZeros) : new LargeSMat(rows, cols, nonZeros);
+		for (int i = 0; i < L.pointr64.length; i++) {
+			L.pointr64[i] = in.readLong();
+		}
+		for (long i = 0; i < nonZeros; i++) {
+			L.set(i, in.readInt(), in.readDouble());
+		}
+		return byRow ? L.transposeView() : L;
+	}
+
+	/** 
+	 * The codec of an OffHeapSMat, in the format of {@link #SMAT}, which 
+	 * reads the matrix without holding it on the heap; the caller closes
+	 * it. Beyond Integer.MAX_VALUE non-zero values, which an OffHeapSMat
+	 * does not hold, a LargeSMat is read as by {@link #SMAT}.
+	 */
+	public static final Codec<SMat> OFF_HEAP_SMAT = new Codec<SMat>() {
+		public void write(DataOutputStream out, SMat matrix) throws IOException {
+			OffHeapSMat S = (OffHeapSMat) matrix;
+			out.writeInt(S.rows);
+			out.writeInt(S.cols);
+			out.writeLong(S.vals);
+			out.writeBoolean(S.byRow);
+			for (int i = 0; i < S.pointr.length; i++) {
+				out.writeLong(S.pointr[i]);
+			}
+			for (int i = 0; i < S.vals; i++) {
+				out.writeInt(S.row(i));
+				out.writeDouble(S.value(i));
+			}
+		}
+
+		public SMat read(DataInputStream in) throws IOException {
+			int rows = in.readInt();
+			int cols = in.readInt();
+			long nonZeros = in.readLong();
+			boolean byRow = in.readBoolean();
+			checkNonZeros(nonZeros);
+			if (nonZeros > Integer.MAX_VALUE) {
+				return readLarge(in, rows, cols, nonZeros, byRow);
+			}
+			OffHeapSMat S = new OffHeapSMat(rows, cols, (int) nonZeros);
+			S.byRow = byRow;
+			if (S.byRow) {
+				S.pointr = new int[rows + 1];
+			}
+			for (int i = 0; i < S.pointr.length; i++) {
+				S.pointr[i] = (int) in.readLong();
+			}
+			for (int i = 0; i < S.vals; i++) {
+				S.set(i, in.readInt(), in.readDouble());
+			}
+			return S;
+		}
+	};
+
+	/** The codec of a sparse matrix of rows; a null row is kept. */
+	public static final Codec<VectorNode[][]> SPARSE_MATRIX = new Codec<VectorNode[][]>() {
+		public void write(DataOutputStream out, VectorNode[][] mx) throws IOException {
+			out.writeInt(mx.length);
+			for (VectorNode[] row : mx) {
+				out.writeInt(row == null ? -1 : row.length);
+				for (int j = 0; row != null && j < row.length; j++) {
+					out.writeInt(row[j].index);
+					out.writeDouble(row[j].value);
+				}
+			}
+		}
+
+		public VectorNode[][] read(DataInputStream in) throws IOException {
+			VectorNode[][] mx = new VectorNode[in.readInt()][];
+			for (int i = 0; i < mx.length; i++) {
+				int length = in.readInt();
+				if (length < 0) {
+					continue;
+				}
+				mx[i] = new VectorNode[length];
+				for (int j = 0; j < length; j++) {
+					mx[i][j] = new VectorNode(in.readInt(), in.readDouble());
+				}
+			}
+			return mx;
+		}
+	};
+
+	/** The codec of the terms kept by pruning them by document frequency. */
+	public static final Codec<VocabularyPruning> PRUNING = new Codec<VocabularyPruning>() {
+		public void write(DataOutputStream out, VocabularyPruning pruning) throws IOException {
+			writeInts(out, pruning.columnMap());
+			writeInts(out, pruning.originalRows());
+		}
+
+		public VocabularyPruning read(DataInputStream in) throws IOException {
+			int[] columnMap = readInts(in);
+			return new VocabularyPruning(columnMap, readInts(in));
+		}
+
+		private void writeInts(DataOutputStream out, int[] values) throws IOException {
+			out.writeInt(values.length);
+			for (int value : values) {
+				out.writeInt(value);
+			}
+		}
+
+		private int[] readInts(DataInputStream in) throws IOException {
+			int[] values = new int[in.readInt()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = in.readInt();
+			}
+			return values;
+		}
+	};
+
+	/** The codec of an array of doubles. */
+	public static final Codec<double[]> DOUBLES = new Codec<double[]>() {
+		public void write(DataOutputStream out, double[] values) throws IOException {
+			out.writeInt(values.length);
+			for (double value : values) {
+				out.writeDouble(value);
+			}
+		}
+
+		public double[] read(DataInputStream in) throws IOException {
+			double[] values = new double[in.readInt()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = in.readDouble();
+			}
+			return values;
+		}
+	};
+
+}
@@ -0,0 +1,197 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.spectralmap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.squalar.util.LongDoubleHashMap;
+import org.squalar.util.SparseMatrixReader;
+import org.squalar.util.SparseVector;
+import org.squalar.util.VectorNode;
+
+/**
+ * Calculates the co-occurrence matrix in a single pass over the documents
+ * as they are parsed, without transposing the term-document matrix. The
+ * documents are handed to worker threads in blocks, each worker adds the
+ * term pairs of its documents to its own accumulator, and the accumulators
+ * are merged at the end.
+ */
+public class StreamingCooccurrence {
+
+	/** The number of documents handed to a worker at once. */
+	private static final int blockSize = 1024;
+
+	/** Marks the end of the documents for the workers. */
+	private static final Block endOfInput = new Block(0);
+
+	/**
+	 * Documents handed to a worker, with their weights.
+	 */
+	private static class Block {
+		final VectorNode[][] docs;
+		final double[] weights;
+		int size = 0;
+
+		Block(int capacity) {
+			docs = new VectorNode[capacity][];
+			weights = new double[capacity];
+		}
+	}
+
+	/**
+	 * Calculates the co-occurrence matrix of a term-document matrix.
+	 *
+	 * @param reader the reader of the term-document matrix
+	 * @param nThreads the number of worker threads
+	 * @return the sparse co-occurrence matrix, zero-indexed as the product
+	 *         of {@link SparseVector#transpose} with itself
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static VectorNode[][] calculate(SparseMatrixReader reader, int nThreads)
+			throws IOException {
+		final BlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(2 * nThreads);
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		ArrayList<Future<LongDoubleHashMap>> workers = new ArrayList<Future<LongDoubleHashMap>>();
+		for (int i = 0; i < nThreads; i++) {
+			workers.add(executor.submit(new Callable<LongDoubleHashMap>() {
+				public LongDoubleHashMap call() throws InterruptedException {
+					LongDoubleHashMap acc = new LongDoubleHashMap();
+					Block block;
+					while ((block = queue.take()) != endOfInput) {
+						for (int j = 0; j < block.size; j++) {
+							SparseVector.accumulateCooccurrence(block.docs[j], block.weights[j], acc);
+						}
+					}
+					return acc;
+				}
+			}));
+		}
+		executor.shutdown();
+		LongDoubleHashMap result = null;
+		try {
+			Block block = new Block(blockSize);
+			VectorNode[] doc;
+			while ((doc = reader.next()) != null) {
+				block.docs[block.size] = doc;
+				block.weights[block.size] = reader.weight();
+				block.size++;
+				if (block.size == blockSize) {
+					put(queue, block, workers);
+					block = new Block(blockSize);
+				}
+			}
+			if (block.size > 0) {
+				put(queue, block, workers);
+			}
+			for (int i = 0; i < nThreads; i++) {
+				put(queue, endOfInput, workers);
+			}
+			for (Future<LongDoubleHashMap> worker : workers) {
+				LongDoubleHashMap acc = worker.get();
+				if (result == null || acc.size() > result.size()) {
+					LongDoubleHashMap tmp = result;
+					result = acc;
+					acc = tmp;
+				}
+				if (acc != null) {
+					result.addAll(acc);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while calculating co-occurrences", e);
+		} catch (ExecutionException e) {
+			throw new IOException("A co-occurrence worker failed", e.getCause());
+		} finally {
+			// stops the workers still waiting for documents after a failure
+			executor.shutdownNow();
+		}
+		return toSparseMatrix(result);
+	}
+
+	/**
+	 * Hands a block of documents to the workers, waiting while the queue is
+	 * full, and rethrows the failure of any worker.
+	 */
+	private static void put(BlockingQueue<Block> queue, Block block,
+			ArrayList<Future<LongDoubleHashMap>> workers) throws InterruptedException, ExecutionException {
+		while (!queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+			for (Future<LongDoubleHashMap> worker : workers) {
+				// a worker only finishes before the end of the input if it failed
+				if (worker.isDone()) {
+					worker.get();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Converts accumulated co-occurrences to a sparse matrix. Term indices
+	 * are shifted to start from zero if the smallest one is positive, in the
+	 * same way as by {@link SparseVector#transpose}. Zero values are dropped.
+	 *
+	 * @param acc the accumulated co-occurrences
+	 * @return the sparse co-occurrence matrix
+	 */
+	static VectorNode[][] toSparseMatrix(LongDoubleHashMap acc) {
+		long[] keys = new long[acc.size()];
+		double[] values = new double[acc.size()];
+		acc.toSortedArrays(keys, values);
+		if (keys.length == 0) {
+			return new VectorNode[0][];
+		}
+		int adjust = LongDoubleHashMap.row(keys[0]) > 0 ? 1 : 0;
+		VectorNode[][] result = new VectorNode[LongDoubleHashMap.row(keys[keys.length - 1]) + 1 - adjust][];
+		int start = 0;
+		while (start < keys.length) {
+			int row = LongDoubleHashMap.row(keys[start]);
+			int end = start;
+			int n = 0;
+			while (end < keys.length && LongDoubleHashMap.row(keys[end]) == row) {
+				if (values[end] != 0) {
+					n++;
+				}
+				end++;
+			}
+			if (n > 0) {
+				VectorNode[] r = new VectorNode[n];
+				n = 0;
+				for (int k = start; k < end; k++) {
+					if (values[k] != 0) {
+						r[n++] = new VectorNode(LongDoubleHashMap.col(keys[k]) - adjust, values[k]);
+					}
+				}
+				result[row - adjust] = r;
+			}
+			start = end;
+		}
+		return result;
+	}
+
+}
@@ -25,8 +25,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Scanner;
+import java.util.StringTokenizer;
 
 import org.squalar.util.DenseVector;
+import org.squalar.util.OffHeapArena;
+import org.squalar.util.OffHeapDenseMatrix;
+
+import ch.akuhn.edu.mit.tedlab.HybridSMat;
 
 /**
  * Command line utility for generating the spectrum of a given term
@@ -36,11 +41,18 @@ import org.squalar.util.DenseVector;
 
 public class TermSpectrum {
 
+	/** The arena of the off-heap matrices. */
+	private OffHeapArena arena = new OffHeapArena();
+	
 	/** The eigenvectors. */
-	private double[][] eigenVectors;
+	private OffHeapDenseMatrix eigenVectors;
 	
-	/** The term matrix. */
-	private double[][] termMatrix;
+	/** The term matrix, its dense rows of frequent terms apart. */
+	private HybridSMat termMatrix;
+	
+	/** The fraction of non-zeros above which a row of the term matrix 
+	 *  is stored densely. */
+	final static double headDensity = 0.5;
 	
 	/** The constant cutOff value of similarity over which term vectors
 	 *  and eigenvectors are considered similar. */
@@ -54,11 +66,13 @@ public class TermSpectrum {
 	 * @param args[2] the eigenvalues file name
 	 * @param args[3] the index terms file name
 	 * @param args[4] the term for which the spectrum is to be drawn
+	 * @param args[5] optional term mapping file name, written by Decompose 
+	 *        if the terms were pruned
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public static void main(String[] args) throws IOException {
-	    if (args.length != 5) {
-		      throw (new IllegalArgumentException("There were " + args.length + " arguments, instead of the expected 5."));
+	    if (args.length != 5 && args.length != 6) {
+		      throw (new IllegalArgumentException("There were " + args.length + " arguments, instead of the expected 5 or 6."));
 		    }
 
 		String cooccurFilename=args[0];
@@ -70,6 +84,13 @@ public class TermSpectrum {
 				cooccurFilename);
 		String[] keywords = readWordList(indexTermFilename);
 			int termIndex = Arrays.binarySearch(keywords,term);
+			if (args.length == 6) {
+				int[] prunedRows = VocabularyPruning.readInverseMapping(args[5]);
+				if (termIndex < 0 || termIndex >= prunedRows.length || prunedRows[termIndex] < 0) {
+					throw (new IllegalArgumentException("The term " + term + " was pruned."));
+				}
+				termIndex = prunedRows[termIndex];
+			}
 			double[] cosines = ts.findCosineValuesForTerm(termIndex);
 			int[] maxCosines = DenseVector.argMax(cosines, 20);
 			for (int j = 0; j < maxCosines.length; j++) {
@@ -82,10 +103,12 @@ public class TermSpectrum {
 			double[] singularValues=DenseVector.readDoubleArray(eigenValuesFilename);
 			GenerateVisibleSpectrum.drawTermSpectrum(singularValues, maxCosines, term);
 		}
+		ts.close();
 	}
 
 	/**
-	 * Instantiates a new term spectrum.
+	 * Instantiates a new term spectrum. The eigenvectors are kept off the heap
+	 * until {@link #close()}.
 	 *
 	 * @param eigenVectorsFilename the eigen ectors filename
 	 * @param cooccurFilename the cooccurrence filename
@@ -93,8 +116,17 @@ public class TermSpectrum {
 	 */
 	public TermSpectrum(String eigenVectorsFilename, String cooccurFilename)
 			throws IOException {
-		this.eigenVectors = DenseVector.readMatrix(eigenVectorsFilename);
-		this.termMatrix = DenseVector.readMatrix(cooccurFilename);
+		this.eigenVectors = OffHeapDenseMatrix.read(eigenVectorsFilename, arena);
+		this.termMatrix = readTermMatrix(cooccurFilename);
+	}
+
+	/**
+	 * Releases the eigenvectors.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void close() throws IOException {
+		arena.close();
 	}
 
 	/**
@@ -104,13 +136,77 @@ public class TermSpectrum {
 	 * @return the cosine values 
 	 */
 	private double[] findCosineValuesForTerm(int termIndex) {
-		double[] result = new double[eigenVectors.length];
-		for (int i = 0; i < eigenVectors.length; i++) {
-			result[i] = DenseVector.cos(termMatrix[termIndex], eigenVectors[i]);
+		double[] result = new double[eigenVectors.rows()];
+		double[] eigenVector = new double[eigenVectors.cols()];
+		for (int i = 0; i < eigenVectors.rows(); i++) {
+			result[i] = termMatrix.cos(termIndex, eigenVectors.getRow(i, eigenVector));
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the dense co-occurrence matrix into a hybrid one: the rows of
+	 * the frequent terms stay dense, the others keep their non-zeros only.
+	 *
+	 * @param fileName the file name
+	 * @return the term matrix
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static HybridSMat readTermMatrix(String fileName) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(fileName));
+		ArrayList<Integer> rowNonZeros = new ArrayList<Integer>();
+		int nCol = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			StringTokenizer st = new StringTokenizer(line, ", ");
+			if (rowNonZeros.isEmpty()) {
+				nCol = st.countTokens();
+			}
+			int nonZeros = 0;
+			while (st.hasMoreTokens()) {
+				if (!isZero(st.nextToken())) {
+					nonZeros++;
+				}
+			}
+			rowNonZeros.add(nonZeros);
+		}
+		in.close();
+		int nRow = rowNonZeros.size();
+		int[] nonZeros = new int[nRow];
+		for (int i = 0; i < nRow; i++) {
+			nonZeros[i] = rowNonZeros.get(i);
+		}
+		HybridSMat result = new HybridSMat(nRow, nCol, true, nonZeros, headDensity);
+		double[] row = new double[nCol];
+		in = new BufferedReader(new FileReader(fileName));
+		for (int i = 0; i < nRow; i++) {
+			StringTokenizer st = new StringTokenizer(in.readLine(), ", ");
+			for (int j = 0; st.hasMoreTokens(); j++) {
+				row[j] = Double.parseDouble(st.nextToken());
+			}
+			result.setLine(i, row);
 		}
+		in.close();
 		return result;
 	}
 
+	/**
+	 * Tells a zero value from its text without parsing it. A value whose 
+	 * only non-zero digits are in the exponent is zero too, but counts as a 
+	 * non-zero; the row then keeps room for a zero.
+	 *
+	 * @param token the text of the value
+	 * @return whether the value is zero
+	 */
+	private static boolean isZero(String token) {
+		for (int i = 0; i < token.length(); i++) {
+			if ("+-.0eE".indexOf(token.charAt(i)) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Reads a term list.
 	 *
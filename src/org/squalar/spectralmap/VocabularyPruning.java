@@ -0,0 +1,183 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.spectralmap;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.squalar.util.DenseVector;
+import org.squalar.util.SparseMatrixReader;
+import org.squalar.util.VectorNode;
+
+/**
+ * Drops the terms that occur in too few or too many documents before the
+ * co-occurrence matrix is calculated, and renumbers the remaining terms 
+ * densely. The mapping from the new term indices to the old ones is 
+ * written to a file, so that terms can still be looked up by their
+ * position in the index term list.
+ */
+public class VocabularyPruning {
+
+	/** The new index of each column index as read, negative for dropped terms. */
+	private int[] columnMap;
+
+	/** The zero-indexed row of each kept term in the unpruned co-occurrence matrix. */
+	private int[] originalRows;
+
+	/**
+	 * Counts the document frequencies of the terms and selects the ones
+	 * within the bounds.
+	 *
+	 * @param tdMatrixFilename the libsvm-formatted term-document matrix file name
+	 * @param minDf the smallest number of documents a kept term occurs in
+	 * @param maxDf the largest fraction of the documents a kept term occurs in
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public VocabularyPruning(String tdMatrixFilename, int minDf, double maxDf)
+			throws IOException {
+		int[] df = new int[1024];
+		// the last document that counted each term, so that a term repeated
+		// within a document is counted once
+		int[] lastDoc = new int[1024];
+		Arrays.fill(lastDoc, -1);
+		int nDocs = 0;
+		int minIndex = Integer.MAX_VALUE;
+		SparseMatrixReader reader = new SparseMatrixReader(tdMatrixFilename);
+		VectorNode[] doc;
+		while ((doc = reader.next()) != null) {
+			for (int i = 0; i < doc.length; i++) {
+				int index = doc[i].index;
+				if (index >= df.length) {
+					int length = Math.max(index + 1, 2 * df.length);
+					df = Arrays.copyOf(df, length);
+					int old = lastDoc.length;
+					lastDoc = Arrays.copyOf(lastDoc, length);
+					Arrays.fill(lastDoc, old, length, -1);
+				}
+				if (lastDoc[index] != nDocs) {
+					lastDoc[index] = nDocs;
+					df[index]++;
+				}
+				minIndex = Math.min(minIndex, index);
+			}
+			nDocs++;
+		}
+		reader.close();
+
+		// the same zero-indexing as in SparseVector.transpose
+		int adjust = minIndex > 0 ? 1 : 0;
+		columnMap = new int[df.length];
+		originalRows = new int[df.length];
+		int n = 0;
+		for (int index = 0; index < df.length; index++) {
+			if (df[index] > 0 && df[index] >= minDf && df[index] <= maxDf * nDocs) {
+				// new indices are one-indexed like libsvm
+				columnMap[index] = n + 1;
+				originalRows[n] = index - adjust;
+				n++;
+			} else {
+				columnMap[index] = -1;
+			}
+		}
+		originalRows = Arrays.copyOf(originalRows, n);
+		Decompose.logger.info("Kept " + n + " terms after pruning by document frequency");
+	}
+
+	/**
+	 * Restores a pruning from the cache.
+	 *
+	 * @param columnMap the new index of each column index as read
+	 * @param originalRows the row of each kept term without pruning
+	 */
+	VocabularyPruning(int[] columnMap, int[] originalRows) {
+		this.columnMap = columnMap;
+		this.originalRows = originalRows;
+	}
+
+	/**
+	 * Gets the new index of each column index as read.
+	 *
+	 * @return the column map
+	 */
+	int[] columnMap() {
+		return columnMap;
+	}
+
+	/**
+	 * Gets the row of each kept term in the unpruned co-occurrence matrix.
+	 *
+	 * @return the original rows
+	 */
+	int[] originalRows() {
+		return originalRows;
+	}
+
+	/**
+	 * Opens the term-document matrix with the pruned and renumbered terms.
+	 *
+	 * @param tdMatrixFilename the libsvm-formatted term-document matrix file name
+	 * @return the reader
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public SparseMatrixReader open(String tdMatrixFilename) throws IOException {
+		return new SparseMatrixReader(tdMatrixFilename, columnMap);
+	}
+
+	/**
+	 * Writes the mapping of the pruned co-occurrence matrix: line i holds 
+	 * the row that the i-th row would have without pruning.
+	 *
+	 * @param filename the file name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void writeMapping(String filename) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(new File(filename)));
+		for (int i = 0; i < originalRows.length; i++) {
+			out.write(originalRows[i] + "\n");
+		}
+		out.close();
+	}
+
+	/**
+	 * Reads a mapping written by {@link #writeMapping(String)} and inverts it.
+	 *
+	 * @param filename the file name
+	 * @return the row of each unpruned row in the pruned matrix, -1 for pruned terms
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static int[] readInverseMapping(String filename) throws IOException {
+		double[] originalRows = DenseVector.readDoubleArray(filename);
+		int size = 0;
+		for (int i = 0; i < originalRows.length; i++) {
+			size = Math.max(size, (int) originalRows[i] + 1);
+		}
+		int[] result = new int[size];
+		Arrays.fill(result, -1);
+		for (int i = 0; i < originalRows.length; i++) {
+			result[(int) originalRows[i]] = i;
+		}
+		return result;
+	}
+
+}
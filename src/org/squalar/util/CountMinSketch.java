@@ -0,0 +1,119 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.util;
+
+import java.util.Random;
+
+/**
+ * A count-min sketch of non-negative values keyed by long keys. It never
+ * underestimates a key's total, and it overestimates it by at most 
+ * {@link #errorBound()} with probability {@link #confidence()}, using
+ * width times depth doubles of memory regardless of the number of keys.
+ */
+public class CountMinSketch {
+
+	private final int width;
+	private final int depth;
+	private final double[][] counts;
+	private final long[] seeds;
+	private double total = 0;
+
+	/**
+	 * Instantiates a new empty sketch.
+	 *
+	 * @param width the number of counters in a row
+	 * @param depth the number of rows, that is, hash functions
+	 */
+	public CountMinSketch(int width, int depth) {
+		this.width = width;
+		this.depth = depth;
+		this.counts = new double[depth][width];
+		this.seeds = new long[depth];
+		Random random = new Random(918273L);
+		for (int i = 0; i < depth; i++) {
+			seeds[i] = random.nextLong() | 1L;
+		}
+	}
+
+	private int bucket(int row, long key) {
+		long h = (key + seeds[row]) * 0x9e3779b97f4a7c15L;
+		h ^= h >>> 31;
+		h *= seeds[row];
+		h ^= h >>> 29;
+		return (int) ((h & Long.MAX_VALUE) % width);
+	}
+
+	/**
+	 * Adds a value to a key.
+	 *
+	 * @param key the key
+	 * @param value the non-negative value
+	 */
+	public void add(long key, double value) {
+		for (int i = 0; i < depth; i++) {
+			counts[i][bucket(i, key)] += value;
+		}
+		total += value;
+	}
+
+	/**
+	 * Estimates the total of a key.
+	 *
+	 * @param key the key
+	 * @return the estimate, never smaller than the true total
+	 */
+	public double estimate(long key) {
+		double result = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < depth; i++) {
+			result = Math.min(result, counts[i][bucket(i, key)]);
+		}
+		return result;
+	}
+
+	/**
+	 * The sum of all values added.
+	 *
+	 * @return the total
+	 */
+	public double total() {
+		return total;
+	}
+
+	/**
+	 * The bound on the overestimate of a key, e/width times the total.
+	 *
+	 * @return the error bound
+	 */
+	public double errorBound() {
+		return Math.E / width * total;
+	}
+
+	/**
+	 * The probability that an estimate is within the error bound, 
+	 * 1-exp(-depth).
+	 *
+	 * @return the confidence
+	 */
+	public double confidence() {
+		return 1 - Math.exp(-depth);
+	}
+
+}
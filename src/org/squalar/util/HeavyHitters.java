@@ -0,0 +1,142 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.util;
+
+/**
+ * Keeps the keys with the largest estimated totals, up to a fixed 
+ * capacity. Estimates come from the caller, typically a 
+ * {@link CountMinSketch}, and only grow over time.
+ */
+public class HeavyHitters {
+
+	private final long[] keys;
+	private final double[] estimates;
+	private final LongIntHashMap positions;
+	private int size = 0;
+
+	/**
+	 * Instantiates a new empty set of heavy hitters.
+	 *
+	 * @param capacity the maximum number of keys kept
+	 */
+	public HeavyHitters(int capacity) {
+		keys = new long[capacity];
+		estimates = new double[capacity];
+		positions = new LongIntHashMap(capacity);
+	}
+
+	/**
+	 * Offers the updated estimate of a key. The key is kept if it is 
+	 * already kept or if its estimate exceeds the smallest kept one.
+	 *
+	 * @param key the key
+	 * @param estimate the current estimate of the key's total
+	 */
+	public void offer(long key, double estimate) {
+		int position = positions.get(key);
+		if (position >= 0) {
+			estimates[position] = estimate;
+			siftDown(position);
+		} else if (size < keys.length) {
+			keys[size] = key;
+			estimates[size] = estimate;
+			positions.put(key, size);
+			siftUp(size++);
+		} else if (estimate > estimates[0]) {
+			positions.remove(keys[0]);
+			keys[0] = key;
+			estimates[0] = estimate;
+			positions.put(key, 0);
+			siftDown(0);
+		}
+	}
+
+	/**
+	 * The smallest kept estimate, which bounds the estimate of every 
+	 * discarded key once the capacity is reached.
+	 *
+	 * @return the smallest estimate, or zero if the capacity is not reached
+	 */
+	public double minEstimate() {
+		return size < keys.length ? 0 : estimates[0];
+	}
+
+	/**
+	 * The number of keys kept.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The i-th kept key, in no particular order.
+	 *
+	 * @param i the position
+	 * @return the key
+	 */
+	public long key(int i) {
+		return keys[i];
+	}
+
+	private void siftUp(int k) {
+		while (k > 0) {
+			int parent = (k - 1) / 2;
+			if (estimates[parent] <= estimates[k]) {
+				return;
+			}
+			swap(k, parent);
+			k = parent;
+		}
+	}
+
+	private void siftDown(int k) {
+		while (true) {
+			int smallest = k;
+			int left = 2 * k + 1;
+			int right = left + 1;
+			if (left < size && estimates[left] < estimates[smallest]) {
+				smallest = left;
+			}
+			if (right < size && estimates[right] < estimates[smallest]) {
+				smallest = right;
+			}
+			if (smallest == k) {
+				return;
+			}
+			swap(k, smallest);
+			k = smallest;
+		}
+	}
+
+	private void swap(int a, int b) {
+		long key = keys[a];
+		keys[a] = keys[b];
+		keys[b] = key;
+		double estimate = estimates[a];
+		estimates[a] = estimates[b];
+		estimates[b] = estimate;
+		positions.put(keys[a], a);
+		positions.put(keys[b], b);
+	}
+
+}
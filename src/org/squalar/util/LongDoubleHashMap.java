@@ -0,0 +1,207 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.util;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from non-negative long keys to accumulated
+ * double values. It avoids boxing, which makes it suitable for summing
+ * millions of matrix entries keyed by {@link #key(int, int)}.
+ */
+public class LongDoubleHashMap {
+
+	private static final long EMPTY = -1L;
+
+	private long[] keys;
+	private double[] values;
+	private int size;
+
+	/**
+	 * Instantiates a new empty map.
+	 */
+	public LongDoubleHashMap() {
+		this(16);
+	}
+
+	/**
+	 * Instantiates a new empty map.
+	 *
+	 * @param expectedSize the expected number of keys
+	 */
+	public LongDoubleHashMap(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new double[capacity];
+		size = 0;
+	}
+
+	/**
+	 * Packs a row and a column index into a key. Keys sort by row first,
+	 * then by column.
+	 *
+	 * @param row the row index
+	 * @param col the column index
+	 * @return the key
+	 */
+	public static long key(int row, int col) {
+		return ((long) row << 32) | (col & 0xffffffffL);
+	}
+
+	/**
+	 * Extracts the row index from a key.
+	 *
+	 * @param key the key
+	 * @return the row index
+	 */
+	public static int row(long key) {
+		return (int) (key >>> 32);
+	}
+
+	/**
+	 * Extracts the column index from a key.
+	 *
+	 * @param key the key
+	 * @return the column index
+	 */
+	public static int col(long key) {
+		return (int) key;
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private int slot(long key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != EMPTY && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Adds a value to the one stored under the key.
+	 *
+	 * @param key the key
+	 * @param value the value to add
+	 */
+	public void add(long key, double value) {
+		int i = slot(key);
+		if (keys[i] == EMPTY) {
+			keys[i] = key;
+			values[i] = value;
+			size++;
+			if (size * 4 > keys.length * 3) {
+				rehash();
+			}
+		} else {
+			values[i] += value;
+		}
+	}
+
+	/**
+	 * Gets the value stored under the key.
+	 *
+	 * @param key the key
+	 * @return the value, or zero if the key is absent
+	 */
+	public double get(long key) {
+		int i = slot(key);
+		return keys[i] == EMPTY ? 0 : values[i];
+	}
+
+	/**
+	 * Adds every entry of another map to this one.
+	 *
+	 * @param other the other map
+	 */
+	public void addAll(LongDoubleHashMap other) {
+		for (int i = 0; i < other.keys.length; i++) {
+			if (other.keys[i] != EMPTY) {
+				add(other.keys[i], other.values[i]);
+			}
+		}
+	}
+
+	/**
+	 * The number of keys.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes every key.
+	 */
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	/**
+	 * Copies the keys and their values in ascending key order.
+	 *
+	 * @param sortedKeys the array receiving the keys, of length at least size()
+	 * @param sortedValues the array receiving the values, of length at least size()
+	 */
+	public void toSortedArrays(long[] sortedKeys, double[] sortedValues) {
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				sortedKeys[n++] = keys[i];
+			}
+		}
+		Arrays.sort(sortedKeys, 0, n);
+		for (int i = 0; i < n; i++) {
+			sortedValues[i] = get(sortedKeys[i]);
+		}
+	}
+
+	private void rehash() {
+		long[] oldKeys = keys;
+		double[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int j = slot(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+				size++;
+			}
+		}
+	}
+
+}
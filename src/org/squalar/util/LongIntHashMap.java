@@ -0,0 +1,137 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.util;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from non-negative long keys to int values
+ * with a fixed maximum number of keys. It avoids boxing, so its memory is
+ * known in advance: 24 bytes per key it can hold.
+ */
+public class LongIntHashMap {
+
+	private static final long EMPTY = -1L;
+
+	private final long[] keys;
+	private final int[] values;
+	private int size;
+
+	/**
+	 * Instantiates a new empty map.
+	 *
+	 * @param maxSize the maximum number of keys
+	 */
+	public LongIntHashMap(int maxSize) {
+		int capacity = 16;
+		while (capacity < maxSize * 2) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new int[capacity];
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private int slot(long key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != EMPTY && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Gets the value stored under the key.
+	 *
+	 * @param key the key
+	 * @return the value, or -1 if the key is absent
+	 */
+	public int get(long key) {
+		int i = slot(key);
+		return keys[i] == EMPTY ? -1 : values[i];
+	}
+
+	/**
+	 * Stores a value under the key.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 */
+	public void put(long key, int value) {
+		int i = slot(key);
+		if (keys[i] == EMPTY) {
+			if (size * 2 >= keys.length) {
+				throw (new IllegalStateException("The map is full"));
+			}
+			keys[i] = key;
+			size++;
+		}
+		values[i] = value;
+	}
+
+	/**
+	 * Removes the key. The keys that follow it in its probe sequence are 
+	 * shifted back, so no tombstones are left.
+	 *
+	 * @param key the key
+	 */
+	public void remove(long key) {
+		int mask = keys.length - 1;
+		int i = slot(key);
+		if (keys[i] == EMPTY) {
+			return;
+		}
+		size--;
+		int j = i;
+		while (true) {
+			keys[i] = EMPTY;
+			int home;
+			do {
+				j = (j + 1) & mask;
+				if (keys[j] == EMPTY) {
+					return;
+				}
+				home = hash(keys[j]) & mask;
+			} while (i <= j ? (i < home && home <= j) : (i < home || home <= j));
+			keys[i] = keys[j];
+			values[i] = values[j];
+			i = j;
+		}
+	}
+
+	/**
+	 * The number of keys.
+	 *
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+}
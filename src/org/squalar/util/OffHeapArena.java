@@ -0,0 +1,122 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+
+/**
+ * The class OffHeapArena allocates memory outside the Java heap, as direct
+ * buffers, and accounts for it. Once the arena is closed, it allocates no
+ * more, and the objects registered with it are closed as well and refuse
+ * access. The buffers returned by allocateDoubles are not tracked: they
+ * stay readable while their holders reference them, and, like all direct
+ * memory, are released only when the garbage collector reclaims them. The
+ * size of the off-heap memory is limited by -XX:MaxDirectMemorySize rather
+ * than -Xmx.
+ */
+public class OffHeapArena implements Closeable {
+
+	/** The largest number of doubles in one buffer. */
+	public static final int MAX_DOUBLES = Integer.MAX_VALUE / 8;
+
+	/** The objects closed with the arena. */
+	private ArrayList<Closeable> resources = new ArrayList<Closeable>();
+	
+	/** The number of bytes allocated. */
+	private long allocated = 0;
+	
+	/** Whether the arena is open. */
+	private boolean open = true;
+
+	/**
+	 * Allocates an off-heap array of doubles, initialized to zero.
+	 *
+	 * @param n the number of doubles, at most MAX_DOUBLES
+	 * @return the buffer
+	 */
+	public synchronized DoubleBuffer allocateDoubles(int n) {
+		checkOpen();
+		if (n > MAX_DOUBLES) {
+			throw (new IllegalArgumentException("A buffer holds at most " + MAX_DOUBLES + " doubles"));
+		}
+		allocated += 8L * n;
+		return ByteBuffer.allocateDirect(8 * n).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	/**
+	 * Registers an object to be closed with the arena.
+	 *
+	 * @param resource the object
+	 */
+	public synchronized void register(Closeable resource) {
+		checkOpen();
+		resources.add(resource);
+	}
+
+	/**
+	 * The number of bytes allocated from the arena.
+	 *
+	 * @return the number of bytes
+	 */
+	public synchronized long allocatedBytes() {
+		return allocated;
+	}
+
+	/**
+	 * Whether the arena is open.
+	 *
+	 * @return true if it is open
+	 */
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Throws an IllegalStateException if the arena is closed.
+	 */
+	public synchronized void checkOpen() {
+		if (!open) {
+			throw (new IllegalStateException("The off-heap arena is closed"));
+		}
+	}
+
+	/**
+	 * Closes the arena and the objects registered with it. Buffers returned
+	 * by allocateDoubles are left to their holders and the garbage collector.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void close() throws IOException {
+		if (!open) {
+			return;
+		}
+		open = false;
+		for (int i = resources.size() - 1; i >= 0; i--) {
+			resources.get(i).close();
+		}
+		resources.clear();
+	}
+}
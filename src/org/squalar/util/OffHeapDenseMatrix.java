@@ -0,0 +1,238 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.StringTokenizer;
+
+/**
+ * The class OffHeapDenseMatrix is a dense matrix stored outside the Java
+ * heap, in buffers of whole rows allocated from an OffHeapArena. It lives
+ * as long as the arena, and only the rows being worked on are copied to
+ * the heap.
+ */
+public class OffHeapDenseMatrix implements Closeable {
+
+	/** The number of rows. */
+	private int rows;
+	
+	/** The number of columns. */
+	private int cols;
+	
+	/** The number of rows in each buffer. */
+	private int rowsPerBuffer;
+	
+	/** The buffers of rows. */
+	private DoubleBuffer[] buffers;
+
+	/**
+	 * Instantiates a new matrix of zeros.
+	 *
+	 * @param rows the number of rows
+	 * @param cols the number of columns
+	 * @param arena the arena of the matrix
+	 */
+	public OffHeapDenseMatrix(int rows, int cols, OffHeapArena arena) {
+		this.rows = rows;
+		this.cols = cols;
+		this.rowsPerBuffer = Math.max(1, OffHeapArena.MAX_DOUBLES / Math.max(1, cols));
+		this.buffers = new DoubleBuffer[(rows + rowsPerBuffer - 1) / rowsPerBuffer];
+		for (int b = 0; b < buffers.length; b++) {
+			buffers[b] = arena.allocateDoubles(Math.min(rowsPerBuffer, rows - b * rowsPerBuffer) * cols);
+		}
+		arena.register(this);
+	}
+
+	/**
+	 * Reads a matrix in the format of {@link DenseVector#readMatrix}, one
+	 * row at a time.
+	 *
+	 * @param fileName the file name
+	 * @param arena the arena of the matrix
+	 * @return the matrix
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static OffHeapDenseMatrix read(String fileName, OffHeapArena arena) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(fileName));
+		int nRow = 0;
+		int nCol = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (nRow == 0) {
+				nCol = new StringTokenizer(line, ", ").countTokens();
+			}
+			nRow++;
+		}
+		in.close();
+		OffHeapDenseMatrix result = new OffHeapDenseMatrix(nRow, nCol, arena);
+		double[] row = new double[nCol];
+		in = new BufferedReader(new FileReader(fileName));
+		for (int i = 0; i < nRow; i++) {
+			StringTokenizer st = new StringTokenizer(in.readLine(), ", ");
+			for (int j = 0; st.hasMoreTokens(); j++) {
+				row[j] = Double.valueOf(st.nextToken()).doubleValue();
+			}
+			result.setRow(i, row);
+		}
+		in.close();
+		return result;
+	}
+
+	/**
+	 * Converts a libsvm sparse matrix in the layout of 
+	 * {@link DenseVector#convertFromSparseMatrix}.
+	 *
+	 * @param mx the libsvm sparse matrix
+	 * @param arena the arena of the matrix
+	 * @return the matrix
+	 */
+	public static OffHeapDenseMatrix fromSparseMatrix(VectorNode[][] mx, OffHeapArena arena) {
+		int shift = SparseVector.findMinColumnIndex(mx) == 0 ? 1 : 0;
+		int maxIndex = SparseVector.findMaxColumnIndex(mx) + shift;
+		OffHeapDenseMatrix result = new OffHeapDenseMatrix(mx.length, maxIndex, arena);
+		double[] row = new double[maxIndex];
+		for (int i = 0; i < mx.length; i++) {
+			java.util.Arrays.fill(row, 0);
+			if (mx[i] != null) {
+				for (int j = 0; j < mx[i].length; j++) {
+					row[mx[i][j].index + shift - 1] = mx[i][j].value;
+				}
+			}
+			result.setRow(i, row);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the matrix in the format of {@link DenseVector#writeDenseMatrix}.
+	 *
+	 * @param filename the file name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void write(String filename) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(new File(filename)));
+		double[] row = new double[cols];
+		for (int i = 0; i < rows; i++) {
+			getRow(i, row);
+			for (int j = 0; j < cols; j++) {
+				out.write(row[j] + "");
+				if (j != cols - 1) {
+					out.write(" ");
+				}
+			}
+			out.write("\n");
+		}
+		out.close();
+	}
+
+	/**
+	 * The number of rows.
+	 *
+	 * @return the number of rows
+	 */
+	public int rows() {
+		return rows;
+	}
+
+	/**
+	 * The number of columns.
+	 *
+	 * @return the number of columns
+	 */
+	public int cols() {
+		return cols;
+	}
+
+	/**
+	 * Gets an element.
+	 *
+	 * @param i the row
+	 * @param j the column
+	 * @return the element
+	 */
+	public double get(int i, int j) {
+		return buffer(i).get((i % rowsPerBuffer) * cols + j);
+	}
+
+	/**
+	 * Sets an element.
+	 *
+	 * @param i the row
+	 * @param j the column
+	 * @param value the value
+	 */
+	public void set(int i, int j, double value) {
+		buffer(i).put((i % rowsPerBuffer) * cols + j, value);
+	}
+
+	/**
+	 * Copies a row to the heap.
+	 *
+	 * @param i the row
+	 * @param row the array of at least cols elements to copy the row to
+	 * @return the array
+	 */
+	public double[] getRow(int i, double[] row) {
+		DoubleBuffer b = buffer(i).duplicate();
+		b.position((i % rowsPerBuffer) * cols);
+		b.get(row, 0, cols);
+		return row;
+	}
+
+	/**
+	 * Copies a row from the heap.
+	 *
+	 * @param i the row
+	 * @param row the array of at least cols elements to copy the row from
+	 */
+	public void setRow(int i, double[] row) {
+		DoubleBuffer b = buffer(i).duplicate();
+		b.position((i % rowsPerBuffer) * cols);
+		b.put(row, 0, cols);
+	}
+
+	/**
+	 * Releases the matrix; it cannot be used afterwards.
+	 */
+	public void close() {
+		buffers = null;
+	}
+
+	/**
+	 * The buffer of a row.
+	 *
+	 * @param i the row
+	 * @return the buffer
+	 */
+	private DoubleBuffer buffer(int i) {
+		if (buffers == null) {
+			throw (new IllegalStateException("The off-heap matrix is closed"));
+		}
+		return buffers[i / rowsPerBuffer];
+	}
+}
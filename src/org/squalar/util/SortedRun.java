@@ -0,0 +1,198 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A sorted run is a binary file of (key, value) records in strictly
+ * ascending key order, where the key packs a row and a column index as
+ * in {@link LongDoubleHashMap#key(int, int)}. Runs can be merged without
+ * loading them into memory.
+ */
+public class SortedRun {
+
+	/**
+	 * Writes a sorted run.
+	 *
+	 * @param keys the keys in ascending order
+	 * @param values the values
+	 * @param n the number of records
+	 * @param file the output file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void write(long[] keys, double[] values, int n, File file)
+			throws IOException {
+		DataOutputStream out = openWriter(file);
+		for (int i = 0; i < n; i++) {
+			out.writeLong(keys[i]);
+			out.writeDouble(values[i]);
+		}
+		out.close();
+	}
+
+	/**
+	 * Writes the content of a map as a sorted run.
+	 *
+	 * @param map the map
+	 * @param file the output file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void write(LongDoubleHashMap map, File file)
+			throws IOException {
+		long[] keys = new long[map.size()];
+		double[] values = new double[map.size()];
+		map.toSortedArrays(keys, values);
+		write(keys, values, keys.length, file);
+	}
+
+	private static DataOutputStream openWriter(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+	}
+
+	/**
+	 * Merges sorted runs into a single one, adding up the values of
+	 * equal keys. Only one record per input is held in memory.
+	 *
+	 * @param inputs the input runs
+	 * @param output the output file, which must differ from the inputs
+	 * @return the number of records written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static long merge(File[] inputs, File output) throws IOException {
+		Reader[] readers = new Reader[inputs.length];
+		// heap holds the indices of the readers that are not exhausted
+		int[] heap = new int[inputs.length];
+		int heapSize = 0;
+		for (int i = 0; i < inputs.length; i++) {
+			readers[i] = new Reader(inputs[i]);
+			if (readers[i].next()) {
+				heap[heapSize++] = i;
+			}
+		}
+		for (int i = heapSize / 2 - 1; i >= 0; i--) {
+			siftDown(heap, heapSize, i, readers);
+		}
+		DataOutputStream out = openWriter(output);
+		long n = 0;
+		while (heapSize > 0) {
+			long key = readers[heap[0]].key;
+			double value = 0;
+			while (heapSize > 0 && readers[heap[0]].key == key) {
+				Reader r = readers[heap[0]];
+				value += r.value;
+				if (!r.next()) {
+					heap[0] = heap[--heapSize];
+				}
+				siftDown(heap, heapSize, 0, readers);
+			}
+			out.writeLong(key);
+			out.writeDouble(value);
+			n++;
+		}
+		out.close();
+		for (int i = 0; i < readers.length; i++) {
+			readers[i].close();
+		}
+		return n;
+	}
+
+	private static void siftDown(int[] heap, int heapSize, int i, Reader[] readers) {
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < heapSize && readers[heap[left]].key < readers[heap[smallest]].key) {
+				smallest = left;
+			}
+			if (right < heapSize && readers[heap[right]].key < readers[heap[smallest]].key) {
+				smallest = right;
+			}
+			if (smallest == i) {
+				return;
+			}
+			int tmp = heap[i];
+			heap[i] = heap[smallest];
+			heap[smallest] = tmp;
+			i = smallest;
+		}
+	}
+
+	/**
+	 * Sequential reader of a sorted run.
+	 */
+	public static class Reader {
+
+		private DataInputStream in;
+
+		/** The key of the current record. */
+		public long key;
+
+		/** The value of the current record. */
+		public double value;
+
+		/**
+		 * Opens a sorted run.
+		 *
+		 * @param file the file
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public Reader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 1 << 16));
+		}
+
+		/**
+		 * Advances to the next record.
+		 *
+		 * @return false at the end of the run
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public boolean next() throws IOException {
+			try {
+				key = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			value = in.readDouble();
+			return true;
+		}
+
+		/**
+		 * Closes the run.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+}
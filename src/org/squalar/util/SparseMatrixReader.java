@@ -0,0 +1,127 @@
+/**
+ * Spectral mapping of index terms
+ *  Copyright (C) 2011 Peter Wittek
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package org.squalar.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Reads a libsvm-formatted sparse matrix one row at a time, so that
+ * a corpus can be processed without holding every document in memory.
+ */
+public class SparseMatrixReader {
+
+	private BufferedReader in;
+
+	/** Maps column indices as read to new ones, negative for dropped columns. */
+	private int[] columnMap;
+
+	/**
+	 * Instantiates a reader that does not read from a file itself, for 
+	 * subclasses that provide the rows in another way.
+	 */
+	protected SparseMatrixReader() {
+	}
+
+	/**
+	 * Opens a libsvm-formatted sparse matrix.
+	 *
+	 * @param filename the file name
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public SparseMatrixReader(String filename) throws IOException {
+		this(filename, null);
+	}
+
+	/**
+	 * Opens a libsvm-formatted sparse matrix whose columns are renumbered 
+	 * as they are read. Rows left without columns are skipped.
+	 *
+	 * @param filename the file name
+	 * @param columnMap the new index of each column index, negative to 
+	 *        drop the column, or null to keep the columns as they are
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public SparseMatrixReader(String filename, int[] columnMap) throws IOException {
+		in = new BufferedReader(new FileReader(filename));
+		this.columnMap = columnMap;
+	}
+
+	/**
+	 * Reads the next non-empty row.
+	 *
+	 * @return the sparse row, or null at the end of the file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public VectorNode[] next() throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.length() > 0) {
+				VectorNode[] row = SparseVector.parseSparseVectorString(line);
+				if (columnMap == null) {
+					return row;
+				}
+				row = mapColumns(row);
+				if (row.length > 0) {
+					return row;
+				}
+			}
+		}
+		return null;
+	}
+
+	private VectorNode[] mapColumns(VectorNode[] row) {
+		int n = 0;
+		for (int i = 0; i < row.length; i++) {
+			int index = row[i].index;
+			if (index < columnMap.length && columnMap[index] >= 0) {
+				row[n++] = new VectorNode(columnMap[index], row[i].value);
+			}
+		}
+		if (n == row.length) {
+			return row;
+		}
+		VectorNode[] result = new VectorNode[n];
+		System.arraycopy(row, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * The weight of the row last returned by {@link #next()}, that is, the
+	 * number of times it stands for, when rows are collapsed.
+	 *
+	 * @return the weight, 1 unless a subclass collapses rows
+	 */
+	public double weight() {
+		return 1;
+	}
+
+	/**
+	 * Closes the underlying file.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
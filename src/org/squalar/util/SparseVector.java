@@ -23,6 +23,8 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Scanner;
 import java.util.StringTokenizer;
 
@@ -97,6 +99,37 @@ public class SparseVector {
 		return result;
 	}
 
+	/**
+	 * Adds the co-occurrences of a single document, that is, the outer
+	 * product of the document vector with itself, to an accumulator.
+	 * The keys use the column indices of the document as they are.
+	 *
+	 * @param doc the sparse document vector
+	 * @param acc the accumulator of co-occurrence values
+	 */
+	public static void accumulateCooccurrence(VectorNode[] doc,
+			LongDoubleHashMap acc) {
+		accumulateCooccurrence(doc, 1, acc);
+	}
+
+	/**
+	 * Adds the co-occurrences of a document that stands for several
+	 * identical documents to an accumulator.
+	 *
+	 * @param doc the sparse document vector
+	 * @param weight the number of documents it stands for
+	 * @param acc the accumulator of co-occurrence values
+	 */
+	public static void accumulateCooccurrence(VectorNode[] doc, double weight,
+			LongDoubleHashMap acc) {
+		for (int i = 0; i < doc.length; i++) {
+			for (int j = 0; j < doc.length; j++) {
+				acc.add(LongDoubleHashMap.key(doc[i].index, doc[j].index),
+						doc[i].value * doc[j].value * weight);
+			}
+		}
+	}
+
 	/**
 	 * Dot product of two sparse vectors.
 	 *
@@ -126,6 +159,37 @@ public class SparseVector {
 		return sum;
 	}
 
+	/**
+	 * Weighted dot product of two sparse vectors.
+	 *
+	 * @param x the x vector
+	 * @param y the y vector
+	 * @param weights the weight of each index, or null for the plain dot product
+	 * @return the weighted dot product
+	 */
+	public static double dotProduct(VectorNode[] x, VectorNode[] y, double[] weights) {
+		if (weights == null) {
+			return dotProduct(x, y);
+		}
+		double sum = 0;
+		if (x == null || y == null) {
+			return 0;
+		}
+		int i = 0;
+		int j = 0;
+		while (i < x.length && j < y.length) {
+			if (x[i].index == y[j].index) {
+				sum += x[i].value * y[j].value * weights[x[i].index];
+				i++;
+				j++;
+			} else if (x[i].index > y[j].index) {
+				++j;
+			} else {
+				++i;
+			}
+		}
+		return sum;
+	}
 	
 	/**
 	 * Sparse matrix multiply with a transpose of the second sparse matrix.
@@ -136,6 +200,20 @@ public class SparseVector {
 	 */
 	public static VectorNode[][] matrixMultiplyWithTranspose(VectorNode[][] mx1,
 			VectorNode[][] mx2) {
+		return matrixMultiplyWithTranspose(mx1, mx2, null);
+	}
+
+	/**
+	 * Sparse matrix multiply with a transpose of the second sparse matrix,
+	 * where each column of the inner dimension carries a weight.
+	 *
+	 * @param mx1 the first sparse matrix
+	 * @param mx2 the second sparse matrix
+	 * @param weights the weight of each column, or null for the plain product
+	 * @return the product sparse matrix
+	 */
+	public static VectorNode[][] matrixMultiplyWithTranspose(VectorNode[][] mx1,
+			VectorNode[][] mx2, double[] weights) {
 		int m = mx1.length;
 		if (findMaxColumnIndex(mx1) != findMaxColumnIndex(mx2)) {
 			return null;
@@ -145,7 +223,7 @@ public class SparseVector {
 			result[i] = null;
 			for (int j = 0; j < m; j++) {
 				double tmp = 0;
-				tmp = dotProduct(mx1[i], mx2[j]);
+				tmp = dotProduct(mx1[i], mx2[j], weights);
 				if (tmp != 0) {
 					result[i] = addNode(result[i], j, tmp);
 				}
@@ -154,6 +232,186 @@ public class SparseVector {
 		return result;
 	}
 
+	/**
+	 * Sparse matrix multiply of a matrix with its own transpose, keeping 
+	 * only the largest entries of each row. Entries are discarded as soon 
+	 * as they are calculated, so the discarded ones are never stored. The 
+	 * result is symmetrized: an entry is kept if it survives in either 
+	 * its row or its column.
+	 *
+	 * @param mx the sparse matrix
+	 * @param weights the weight of each column, or null for the plain product
+	 * @param topK the maximum number of entries kept in a row, or 0 to keep all
+	 * @param threshold the absolute value an entry must reach to be kept
+	 * @param relativeThreshold the value an entry must reach relative to 
+	 *        the geometric mean of the corresponding diagonal entries
+	 * @return the symmetric sparse product matrix
+	 */
+	public static VectorNode[][] matrixMultiplyWithTranspose(VectorNode[][] mx,
+			double[] weights, int topK, double threshold, double relativeThreshold) {
+		int m = mx.length;
+		double[] diagonal = new double[m];
+		for (int i = 0; i < m; i++) {
+			diagonal[i] = dotProduct(mx[i], mx[i], weights);
+		}
+		int capacity = topK > 0 ? topK : m;
+		int[] heapIndex = new int[capacity];
+		double[] heapValue = new double[capacity];
+		VectorNode[][] result = new VectorNode[m][];
+		for (int i = 0; i < m; i++) {
+			int n = 0;
+			for (int j = 0; j < m; j++) {
+				double tmp = i == j ? diagonal[i] : dotProduct(mx[i], mx[j], weights);
+				if (tmp == 0 || Math.abs(tmp) < threshold
+						|| Math.abs(tmp) < relativeThreshold * Math.sqrt(diagonal[i] * diagonal[j])) {
+					continue;
+				}
+				if (topK <= 0) {
+					heapIndex[n] = j;
+					heapValue[n] = tmp;
+					n++;
+				} else if (n < topK) {
+					heapIndex[n] = j;
+					heapValue[n] = tmp;
+					n++;
+					siftUp(heapIndex, heapValue, n - 1);
+				} else if (Math.abs(tmp) > Math.abs(heapValue[0])) {
+					heapIndex[0] = j;
+					heapValue[0] = tmp;
+					siftDown(heapIndex, heapValue, n, 0);
+				}
+			}
+			if (n > 0) {
+				result[i] = new VectorNode[n];
+				for (int k = 0; k < n; k++) {
+					result[i][k] = new VectorNode(heapIndex[k], heapValue[k]);
+				}
+				if (topK > 0) {
+					sortByIndex(result[i]);
+				}
+			}
+		}
+		return symmetrize(result);
+	}
+
+	private static void siftUp(int[] heapIndex, double[] heapValue, int k) {
+		while (k > 0) {
+			int parent = (k - 1) / 2;
+			if (Math.abs(heapValue[parent]) <= Math.abs(heapValue[k])) {
+				return;
+			}
+			swap(heapIndex, heapValue, k, parent);
+			k = parent;
+		}
+	}
+
+	private static void siftDown(int[] heapIndex, double[] heapValue, int n, int k) {
+		while (true) {
+			int smallest = k;
+			int left = 2 * k + 1;
+			int right = left + 1;
+			if (left < n && Math.abs(heapValue[left]) < Math.abs(heapValue[smallest])) {
+				smallest = left;
+			}
+			if (right < n && Math.abs(heapValue[right]) < Math.abs(heapValue[smallest])) {
+				smallest = right;
+			}
+			if (smallest == k) {
+				return;
+			}
+			swap(heapIndex, heapValue, k, smallest);
+			k = smallest;
+		}
+	}
+
+	private static void swap(int[] heapIndex, double[] heapValue, int a, int b) {
+		int index = heapIndex[a];
+		heapIndex[a] = heapIndex[b];
+		heapIndex[b] = index;
+		double value = heapValue[a];
+		heapValue[a] = heapValue[b];
+		heapValue[b] = value;
+	}
+
+	private static void sortByIndex(VectorNode[] v) {
+		Arrays.sort(v, new Comparator<VectorNode>() {
+			public int compare(VectorNode a, VectorNode b) {
+				return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+			}
+		});
+	}
+
+	/**
+	 * Symmetrizes a square sparse matrix whose entries are symmetric but 
+	 * may be missing from one side: every entry is mirrored to the 
+	 * transposed position if it is not present there.
+	 *
+	 * @param mx the sparse matrix
+	 * @return the symmetric matrix
+	 */
+	public static VectorNode[][] symmetrize(VectorNode[][] mx) {
+		int m = mx.length;
+		int[] missing = new int[m];
+		for (int i = 0; i < m; i++) {
+			if (mx[i] != null) {
+				for (int k = 0; k < mx[i].length; k++) {
+					int j = mx[i][k].index;
+					if (!contains(mx[j], i)) {
+						missing[j]++;
+					}
+				}
+			}
+		}
+		VectorNode[][] result = new VectorNode[m][];
+		int[] n = new int[m];
+		for (int i = 0; i < m; i++) {
+			int length = (mx[i] == null ? 0 : mx[i].length) + missing[i];
+			if (length > 0) {
+				result[i] = new VectorNode[length];
+			}
+			if (mx[i] != null) {
+				for (int k = 0; k < mx[i].length; k++) {
+					result[i][n[i]++] = mx[i][k];
+				}
+			}
+		}
+		for (int i = 0; i < m; i++) {
+			if (mx[i] != null) {
+				for (int k = 0; k < mx[i].length; k++) {
+					int j = mx[i][k].index;
+					if (!contains(mx[j], i)) {
+						result[j][n[j]++] = new VectorNode(i, mx[i][k].value);
+					}
+				}
+			}
+		}
+		for (int i = 0; i < m; i++) {
+			if (missing[i] > 0) {
+				sortByIndex(result[i]);
+			}
+		}
+		return result;
+	}
+
+	private static boolean contains(VectorNode[] v, int index) {
+		if (v == null) {
+			return false;
+		}
+		int low = 0;
+		int high = v.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (v[mid].index < index) {
+				low = mid + 1;
+			} else if (v[mid].index > index) {
+				high = mid - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Reads a sparse matrix.
 	 *
@@ -181,7 +439,26 @@ public class SparseVector {
 		return resultArray;
 	}
 
-	private static VectorNode[] parseSparseVectorString(String s){
+	/**
+	 * Reads the remaining rows of a sparse matrix.
+	 *
+	 * @param reader the reader of the sparse matrix
+	 * @return the sparse matrix
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static VectorNode[][] readSparseMatrix(SparseMatrixReader reader)
+			throws IOException {
+		ArrayList<VectorNode[]> result = new ArrayList<VectorNode[]>();
+		VectorNode[] row;
+		while ((row = reader.next()) != null) {
+			result.add(row);
+		}
+		VectorNode[][] resultArray=new VectorNode[result.size()][];
+		result.toArray(resultArray);
+		return resultArray;
+	}
+
+	static VectorNode[] parseSparseVectorString(String s){
 		StringTokenizer st = new StringTokenizer(s, "[ :]");
 		int nTokens=st.countTokens();
 		if (nTokens%2!=0){